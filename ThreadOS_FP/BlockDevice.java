@@ -0,0 +1,11 @@
+// What the Kernel needs from a disk: commands that are queued and
+// completed asynchronously. Each method returns the request the caller
+// waits on, or null if the device cannot take the command yet.
+public interface BlockDevice {
+    public void start( );
+    public DiskRequest read( int blockId, byte buffer[] );
+    public DiskRequest write( int blockId, byte buffer[] );
+    public DiskRequest readv( int blockId, byte buffer[] );
+    public DiskRequest writev( int blockId, byte buffer[] );
+    public DiskRequest sync( );
+}
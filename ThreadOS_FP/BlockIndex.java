@@ -0,0 +1,73 @@
+// An open-addressing hash map from a disk block id to a cache page, kept
+// in two parallel int arrays so that a lookup neither boxes nor allocates.
+// Collisions probe linearly; a removal shifts later entries of the probe
+// sequence back, so no tombstones pile up. The table is never more than
+// half full, since it is sized for the number of pages up front.
+public class BlockIndex {
+    public static final int NONE = -1;
+
+    private int keys[];		// block ids, NONE for an empty slot
+    private int values[];	// page numbers
+    private int mask;
+
+    // an index for up to capacity blocks
+    public BlockIndex( int capacity ) {
+	int size = 2;
+	while ( size < capacity * 2 )
+	    size <<= 1;
+	keys = new int[ size ];
+	values = new int[ size ];
+	mask = size - 1;
+	clear( );
+    }
+
+    // spreads consecutive block ids, which are the common case
+    private int slot( int key ) {
+	int h = key * 0x9E3779B9;
+	return ( h ^ ( h >>> 16 ) ) & mask;
+    }
+
+    // the page holding block key, or NONE
+    public int get( int key ) {
+	for ( int i = slot( key ); ; i = ( i + 1 ) & mask ) {
+	    if ( keys[i] == key )
+		return values[i];
+	    if ( keys[i] == NONE )
+		return NONE;
+	}
+    }
+
+    public void put( int key, int value ) {
+	int i = slot( key );
+	while ( keys[i] != NONE && keys[i] != key )
+	    i = ( i + 1 ) & mask;
+	keys[i] = key;
+	values[i] = value;
+    }
+
+    public void remove( int key ) {
+	int i = slot( key );
+	while ( keys[i] != key ) {
+	    if ( keys[i] == NONE )
+		return;
+	    i = ( i + 1 ) & mask;
+	}
+	// close the gap: move back each later entry whose home slot does
+	// not lie cyclically between the gap and the entry itself
+	for ( int j = ( i + 1 ) & mask; keys[j] != NONE; j = ( j + 1 ) & mask ) {
+	    int home = slot( keys[j] );
+	    if ( ( j > i && ( home <= i || home > j ) )
+		 || ( j < i && ( home <= i && home > j ) ) ) {
+		keys[i] = keys[j];
+		values[i] = values[j];
+		i = j;
+	    }
+	}
+	keys[i] = NONE;
+    }
+
+    public void clear( ) {
+	for ( int i = 0; i < keys.length; i++ )
+	    keys[i] = NONE;
+    }
+}
@@ -0,0 +1,445 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// A write-back buffer cache of disk blocks, split among CacheShards. The
+// file system does all of its block I/O through it; dirty pages reach the
+// disk when evicted and on every SysLib.sync( ). Raw disk calls bypass
+// the cache and see a block as of its last write-back.
+public class Cache {
+    private int blockSize;
+    private CacheShard shards[];
+    private volatile PrintWriter trace;	// null unless accesses are logged
+    private volatile StreamDetector streams;	// null unless scans are spotted
+
+    // the most pages pinnable, in percent, so a shard always has some
+    // pages left to replace
+    private static final int maxPinPercent = 75;
+
+    // dirty write-backs started and finished by any shard
+    private AtomicLong evictions;
+
+    private Flusher flusher;	// null unless started
+
+    private volatile int pageCount;	// pages in all shards
+    private volatile MissCurve curve;	// null unless the size adapts
+    private int minPages;
+    private int maxPages;
+    private String curveFile;	// null unless the curve is written out
+    private AtomicBoolean tuning;	// set while tune( ) runs
+
+    // sampled accesses between two sizing decisions, and the slack in miss
+    // ratio a smaller size may have
+    private static final int tuneAccesses = 512;
+    private static final double tuneSlack = 0.01;
+
+    // a block always goes to the shard its id hashes to
+    private CacheShard shard( int blockId ) {
+	return shards[( blockId & 0x7fffffff ) % shards.length];
+    }
+
+    private void log( String op, int blockId ) {
+	PrintWriter t = trace;
+	if ( t != null ) {
+	    synchronized ( t ) {
+		t.println( op + " " + blockId );
+	    }
+	}
+    }
+
+    public Cache( int blockSize, int cacheBlocks ) {
+	this( blockSize, cacheBlocks, "second-chance" );
+    }
+
+    // policyName as accepted by CachePolicy.forName
+    public Cache( int blockSize, int cacheBlocks, String policyName ) {
+	this( blockSize, cacheBlocks, policyName, 1 );
+    }
+
+    public Cache( int blockSize, int cacheBlocks, String policyName,
+		  int shardCount ) {
+	this( blockSize, cacheBlocks, policyName, shardCount, "heap" );
+    }
+
+    // Splits the cacheBlocks pages evenly among shardCount shards, each
+    // getting at least one page and keeping it in the PageStore named
+    // storeName.
+    public Cache( int blockSize, int cacheBlocks, String policyName,
+		  int shardCount, String storeName ) {
+	this.blockSize = blockSize;
+	trace = null;
+	evictions = new AtomicLong( );
+	tuning = new AtomicBoolean( false );
+	if ( shardCount < 1 )
+	    shardCount = 1;
+	shards = new CacheShard[ shardCount ];
+	pageCount = 0;
+	for ( int s = 0; s < shardCount; s++ ) {
+	    shards[s] = new CacheShard( blockSize, share( cacheBlocks, s ),
+					storeName, policyName, evictions );
+	    pageCount += shards[s].size( );
+	}
+    }
+
+    // the pages shard s gets out of cacheBlocks
+    private int share( int cacheBlocks, int s ) {
+	int n = cacheBlocks / shards.length
+	    + ( ( s < cacheBlocks % shards.length ) ? 1 : 0 );
+	return Math.max( n, 1 );
+    }
+
+    // Lets the cache grow and shrink between minPages and maxPages. A
+    // MissCurve follows the blocks asked for, evicted ones included, and
+    // estimates the miss ratio at every size in between. If fileName is not null, the curve is
+    // written to that host file at every sizing decision. The size stays
+    // fixed, and no curve is kept, if both bounds equal the current size
+    // and there is no file.
+    public synchronized void adaptSize( int minPages, int maxPages,
+					String fileName ) {
+	this.minPages = Math.max( minPages, 1 );
+	this.maxPages = Math.max( maxPages, this.minPages );
+	curveFile = fileName;
+	if ( this.minPages == pageCount && this.maxPages == pageCount
+	     && fileName == null ) {
+	    curve = null;
+	    return;
+	}
+	curve = new MissCurve( this.maxPages );
+    }
+
+    // the number of pages the cache has now
+    public int size( ) {
+	return pageCount;
+    }
+
+    // the estimated miss ratio at the given number of pages, or -1 if the
+    // size does not adapt
+    public double missRatio( int pages ) {
+	MissCurve c = curve;
+	return ( c == null ) ? -1 : c.missRatio( pages );
+    }
+
+    private void sample( int blockId ) {
+	MissCurve c = curve;
+	if ( c != null && c.sampled( blockId ) ) {
+	    c.access( blockId );
+	    if ( c.accesses( ) >= tuneAccesses
+		 && tuning.compareAndSet( false, true ) ) {
+		tune( c );
+		tuning.set( false );
+	    }
+	}
+    }
+
+    // Picks the smallest size whose miss ratio is within tuneSlack of the
+    // largest size's, and resizes the shards if it is at least an eighth
+    // away from the current size. The counts are then
+    // halved, so older accesses weigh less at the next decision.
+    private void tune( MissCurve c ) {
+	int step = c.granularity( );
+	double best = c.missRatio( maxPages );
+	int target = maxPages;
+	for ( int pages = minPages; pages < maxPages; pages += step ) {
+	    if ( c.missRatio( pages ) <= best + tuneSlack ) {
+		target = pages;
+		break;
+	    }
+	}
+	if ( Math.abs( target - pageCount ) >= Math.max( pageCount / 8, step ) )
+	    resize( target );
+	if ( curveFile != null )
+	    c.write( curveFile );
+	c.decay( );
+    }
+
+    // gives the shards cacheBlocks pages in all
+    private void resize( int cacheBlocks ) {
+	int total = 0;
+	for ( int s = 0; s < shards.length; s++ ) {
+	    shards[s].resize( share( cacheBlocks, s ) );
+	    total += shards[s].size( );
+	}
+	pageCount = total;
+    }
+
+    // Starts the background flusher. It wakes when more than highPercent
+    // of the pages are dirty and cleans pages until at most lowPercent
+    // are; it also cleans any page dirty for maxAge milliseconds or more.
+    public synchronized void startFlusher( int highPercent, int lowPercent,
+					   int maxAge ) {
+	if ( flusher != null )
+	    return;
+	flusher = new Flusher( highPercent, Math.min( lowPercent, highPercent ),
+			       maxAge );
+	flusher.start( );
+    }
+
+    // the number of dirty pages in all shards
+    private int dirtyPages( ) {
+	int n = 0;
+	for ( int s = 0; s < shards.length; s++ )
+	    n += shards[s].dirtyPages( );
+	return n;
+    }
+
+    // lets up to percent percent of each shard's pages be pinned, at most
+    // maxPinPercent; 0 turns pinning off. The superblock, inode and
+    // directory blocks the file system reads on every open are worth it.
+    public void setPinLimit( int percent ) {
+	percent = Math.max( 0, Math.min( percent, maxPinPercent ) );
+	for ( int s = 0; s < shards.length; s++ )
+	    shards[s].setPinPercent( percent );
+    }
+
+    // Keeps blockId cached until as many unpin( blockId ) calls. Fails if
+    // the block cannot be read or the pin limit is reached.
+    public boolean pin( int blockId ) {
+	if ( blockId < 0 )
+	    return false;
+	return shard( blockId ).pin( blockId );
+    }
+
+    public boolean unpin( int blockId ) {
+	if ( blockId < 0 )
+	    return false;
+	return shard( blockId ).unpin( blockId );
+    }
+
+    // Treats the blocks of a run of consecutive blocks as a scan once the
+    // run is threshold blocks long; 0 turns scan detection off. Scan
+    // blocks are loaded at low priority, so that a large file scan does not
+    // push the small hot files and the file system's own blocks out.
+    public void detectScans( int threshold ) {
+	streams = ( threshold > 0 ) ? new StreamDetector( threshold ) : null;
+    }
+
+    // the StreamDetector kind of the calling thread's access to blockId
+    private int scan( int blockId ) {
+	StreamDetector d = streams;
+	return ( d != null ) ? d.access( blockId ) : StreamDetector.RANDOM;
+    }
+
+    // Starts logging block accesses to the host file fileName, as
+    // "r <block>" or "w <block>"; CacheReplay replays such a trace against
+    // each policy to compare hit ratios.
+    public synchronized void setTrace( String fileName ) {
+	try {
+	    trace = new PrintWriter( new BufferedWriter(
+				 new FileWriter( fileName ) ) );
+	} catch ( IOException e ) {
+	    SysLib.cerr( "threadOS: cannot write cache trace " + fileName
+			 + " (" + e.toString( ) + ")\n" );
+	}
+    }
+
+    public boolean read( int blockId, byte buffer[] ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+	    return false;
+	}
+	log( "r", blockId );
+	sample( blockId );
+	return shard( blockId ).read( blockId, 0, buffer, 0, blockSize,
+				      scan( blockId ) );
+    }
+
+    // Copies length bytes of blockId, starting blockOffset bytes into the
+    // block, straight into buffer at offset; no intermediate block is
+    // needed.
+    public boolean read( int blockId, int blockOffset, byte buffer[],
+			 int offset, int length ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+	    return false;
+	}
+	if ( blockOffset < 0 || length < 0 || blockOffset + length > blockSize
+	     || offset < 0 || offset + length > buffer.length ) {
+	    SysLib.cerr( "threadOS: a wrong range for cread\n" );
+	    return false;
+	}
+	log( "r", blockId );
+	sample( blockId );
+	return shard( blockId ).read( blockId, blockOffset, buffer, offset,
+				      length, scan( blockId ) );
+    }
+
+    public boolean write( int blockId, byte buffer[] ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cwrite\n" );
+	    return false;
+	}
+	log( "w", blockId );
+	sample( blockId );
+	boolean ok = shard( blockId ).write( blockId, buffer, scan( blockId ) );
+	Flusher f = flusher;
+	if ( f != null && dirtyPages( ) > f.high( ) )
+	    f.wake( );
+	return ok;
+    }
+
+    // Reads buffer.length / blockSize consecutive blocks. Unless all of
+    // them are cached, the run is read from the disk in one command and
+    // the cached blocks, which may be newer, are copied over it. The
+    // blocks are not added to the cache. If a dirty block was being
+    // written back while the run was read, the disk copy may be stale, so
+    // the whole read is repeated.
+    public boolean readv( int blockId, byte buffer[] ) {
+	int count = buffer.length / blockSize;
+	boolean disk = false;
+	while ( true ) {
+	    long before = evictions.get( );
+	    if ( disk && SysLib.rawreadv( blockId, buffer ) == Kernel.ERROR )
+		return false;
+	    boolean all = true;
+	    for ( int b = 0; b < count; b++ )
+		if ( shard( blockId + b ).overlay( blockId + b, buffer,
+						   b * blockSize ) == false )
+		    all = false;
+	    if ( all || ( disk && evictions.get( ) == before ) )
+		return true;
+	    disk = true;
+	}
+    }
+
+    // Writes buffer.length / blockSize consecutive blocks straight to the
+    // disk in one command. Cached copies of them are updated and, being
+    // on the disk now, are no longer dirty.
+    public boolean writev( int blockId, byte buffer[] ) {
+	int count = buffer.length / blockSize;
+	for ( int b = 0; b < count; b++ )
+	    shard( blockId + b ).supersede( blockId + b );
+	if ( SysLib.rawwritev( blockId, buffer ) == Kernel.ERROR )
+	    return false;
+	for ( int b = 0; b < count; b++ )
+	    shard( blockId + b ).update( blockId + b, buffer, b * blockSize );
+	return true;
+    }
+
+    // writes every dirty page back to the disk, keeping it cached
+    public void writeBack( ) {
+	for ( int s = 0; s < shards.length; s++ )
+	    shards[s].writeBack( );
+	PrintWriter t = trace;
+	if ( t != null ) {
+	    synchronized ( t ) {
+		t.flush( );
+	    }
+	}
+    }
+
+    // No cache lock is held during SysLib.sync( ), since the sync goes
+    // through the file system, which may be waiting for the cache.
+    public void sync( ) {
+	writeBack( );
+	SysLib.sync( );
+    }
+
+    public void flush( ) {
+	for ( int s = 0; s < shards.length; s++ )
+	    shards[s].flush( );
+	SysLib.sync( );
+    }
+
+    // Cleans dirty pages in the background, so that a miss seldom has to
+    // write its victim back first. Each round cleans the oldest pages in
+    // block order, a run of consecutive blocks in one command.
+    private class Flusher extends Thread {
+	final int highPercent;	// dirty pages that wake the flusher
+	final int lowPercent;	// dirty pages it stops at
+	final int maxAge;	// milliseconds a page may stay dirty
+	private boolean woken = false;
+
+	Flusher( int highPercent, int lowPercent, int maxAge ) {
+	    this.highPercent = highPercent;
+	    this.lowPercent = lowPercent;
+	    this.maxAge = maxAge;
+	    setDaemon( true );
+	}
+
+	// the watermarks in pages, following the cache's current size
+	int high( ) {
+	    return pageCount * highPercent / 100;
+	}
+
+	int low( ) {
+	    return pageCount * lowPercent / 100;
+	}
+
+	synchronized void wake( ) {
+	    woken = true;
+	    notify( );
+	}
+
+	// sleeps until woken, or until it is time to look for old pages
+	private synchronized void await( ) {
+	    long period = ( maxAge > 0 ) ? Math.max( maxAge / 2, 10 ) : 0;
+	    while ( woken == false ) {
+		try {
+		    wait( period );
+		} catch ( InterruptedException e ) {
+		    SysLib.cerr( e.toString( ) + "\n" );
+		}
+		if ( period > 0 )
+		    break;
+	    }
+	    woken = false;
+	}
+
+	public void run( ) {
+	    while ( true ) {
+		await( );
+		Vector<CacheShard.DirtyPage> dirty =
+		    new Vector<CacheShard.DirtyPage>( );
+		for ( int s = 0; s < shards.length; s++ )
+		    shards[s].dirtyPages( dirty );
+
+		// the oldest pages first: all that exceed the low watermark
+		// if past the high one, then any others past the age limit
+		Collections.sort( dirty, new Comparator<CacheShard.DirtyPage>( ) {
+			public int compare( CacheShard.DirtyPage a,
+					    CacheShard.DirtyPage b ) {
+			    return Long.compare( a.since, b.since );
+			}
+		    } );
+		int take = ( dirtyPages( ) > high( ) ) ? dirty.size( ) - low( ) : 0;
+		long old = System.currentTimeMillis( ) - maxAge;
+		Vector<CacheShard.DirtyPage> batch =
+		    new Vector<CacheShard.DirtyPage>( );
+		for ( int d = 0; d < dirty.size( ); d++ ) {
+		    CacheShard.DirtyPage page = dirty.elementAt( d );
+		    if ( d >= take && ( maxAge <= 0 || page.since > old ) )
+			break;
+		    if ( page.shard.clean( page ) )
+			batch.addElement( page );
+		}
+		write( batch );
+	    }
+	}
+
+	// writes the batch in block order, coalescing consecutive blocks
+	private void write( Vector<CacheShard.DirtyPage> batch ) {
+	    Collections.sort( batch, new Comparator<CacheShard.DirtyPage>( ) {
+		    public int compare( CacheShard.DirtyPage a,
+					CacheShard.DirtyPage b ) {
+			return Integer.compare( a.blockId, b.blockId );
+		    }
+		} );
+	    int first = 0;
+	    while ( first < batch.size( ) ) {
+		int end = first + 1;
+		while ( end < batch.size( ) && batch.elementAt( end ).blockId
+			== batch.elementAt( end - 1 ).blockId + 1 )
+		    end++;
+		byte run[] = new byte[ ( end - first ) * blockSize ];
+		for ( int b = first; b < end; b++ )
+		    System.arraycopy( batch.elementAt( b ).data, 0, run,
+				      ( b - first ) * blockSize, blockSize );
+		boolean ok = SysLib.rawwritev( batch.elementAt( first ).blockId,
+					       run ) != Kernel.ERROR;
+		for ( int b = first; b < end; b++ )
+		    batch.elementAt( b ).shard.cleaned( batch.elementAt( b ), ok );
+		first = end;
+	    }
+	}
+    }
+}
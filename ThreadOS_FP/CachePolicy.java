@@ -0,0 +1,601 @@
+// The replacement policy of a Cache. The cache tells its policy about
+// every hit and every block it loads, and asks it for a victim page when
+// all pages are full. Pages are numbered 0 .. pages - 1; the policies keep
+// their own bookkeeping in int arrays indexed by page, so a hit never
+// allocates.
+public abstract class CachePolicy {
+    protected final int pages;
+
+    protected CachePolicy( int pages ) {
+	this.pages = pages;
+    }
+
+    // page now holds blockId, loaded on a miss
+    public abstract void inserted( int page, int blockId );
+
+    // the block in page was hit
+    public abstract void accessed( int page );
+
+    // Chooses the page to evict so that blockId can be loaded; called only
+    // when every page holds a block. The policy forgets the page it
+    // returns until it is inserted again. A policy that keeps track of
+    // the pages it holds returns -1 if it holds none.
+    public abstract int victim( int blockId );
+
+    // page no longer holds a block, e.g. after a flush
+    public abstract void removed( int page );
+
+    // Builds a policy from a boot option value:
+    //   second-chance  the original ThreadOS clock with reference bits
+    //                  (the default; "clock" is accepted as well)
+    //   lru            least recently used
+    //   2q             2Q: a FIFO for new blocks, an LRU for re-used ones
+    //   arc            adaptive replacement cache
+    //   clock-pro      CLOCK-Pro: hot and cold pages on one clock
+    // Any other name is reported and second-chance used.
+    public static CachePolicy forName( String name, int pages ) {
+	if ( name.equals( "lru" ) )
+	    return new Lru( pages );
+	if ( name.equals( "2q" ) )
+	    return new TwoQueue( pages );
+	if ( name.equals( "arc" ) )
+	    return new Arc( pages );
+	if ( name.equals( "clock-pro" ) )
+	    return new ClockPro( pages );
+	if ( name.equals( "second-chance" ) == false
+	     && name.equals( "clock" ) == false )
+	    SysLib.cerr( "threadOS: unknown cache policy " + name
+			 + ", using second-chance\n" );
+	return new SecondChance( pages );
+    }
+
+    // A doubly linked list of the ids 0 .. capacity - 1, each on the list
+    // at most once. The list is circular through a sentinel; next( ) of
+    // the last id returns NONE.
+    static class IntList {
+	public static final int NONE = -1;
+	private int next[];
+	private int prev[];
+	private boolean member[];
+	private final int head;	// the sentinel
+	private int size;
+
+	IntList( int capacity ) {
+	    next = new int[ capacity + 1 ];
+	    prev = new int[ capacity + 1 ];
+	    member = new boolean[ capacity ];
+	    head = capacity;
+	    next[head] = prev[head] = head;
+	    size = 0;
+	}
+
+	int size( ) {
+	    return size;
+	}
+
+	boolean contains( int id ) {
+	    return member[id];
+	}
+
+	int first( ) {
+	    return ( next[head] == head ) ? NONE : next[head];
+	}
+
+	int last( ) {
+	    return ( prev[head] == head ) ? NONE : prev[head];
+	}
+
+	int next( int id ) {
+	    return ( next[id] == head ) ? NONE : next[id];
+	}
+
+	int prev( int id ) {
+	    return ( prev[id] == head ) ? NONE : prev[id];
+	}
+
+	void addFirst( int id ) {
+	    insertAfter( head, id );
+	}
+
+	void addLast( int id ) {
+	    insertAfter( prev[head], id );
+	}
+
+	// puts id right before at, which must be on the list
+	void addBefore( int at, int id ) {
+	    insertAfter( prev[at], id );
+	}
+
+	private void insertAfter( int at, int id ) {
+	    next[id] = next[at];
+	    prev[id] = at;
+	    prev[next[at]] = id;
+	    next[at] = id;
+	    member[id] = true;
+	    size++;
+	}
+
+	void remove( int id ) {
+	    if ( member[id] == false )
+		return;
+	    next[prev[id]] = next[id];
+	    prev[next[id]] = prev[id];
+	    member[id] = false;
+	    size--;
+	}
+
+	void moveToFirst( int id ) {
+	    remove( id );
+	    addFirst( id );
+	}
+    }
+
+    // A bounded LRU list of block ids no longer cached, remembered so that
+    // a policy can tell a block coming back from one never seen.
+    static class GhostList {
+	private IntList order;	// slots, most recent first
+	private int blocks[];	// slot -> block id
+	private BlockIndex slots;	// block id -> slot
+	private int free[];	// unused slots
+	private int freeCount;
+
+	GhostList( int capacity ) {
+	    capacity = Math.max( capacity, 1 );
+	    order = new IntList( capacity );
+	    blocks = new int[ capacity ];
+	    slots = new BlockIndex( capacity );
+	    free = new int[ capacity ];
+	    for ( freeCount = 0; freeCount < capacity; freeCount++ )
+		free[freeCount] = capacity - 1 - freeCount;
+	}
+
+	int size( ) {
+	    return order.size( );
+	}
+
+	boolean contains( int blockId ) {
+	    return slots.get( blockId ) != BlockIndex.NONE;
+	}
+
+	// remembers blockId, forgetting the oldest block if full
+	void add( int blockId ) {
+	    remove( blockId );
+	    if ( freeCount == 0 )
+		removeLast( );
+	    int slot = free[--freeCount];
+	    blocks[slot] = blockId;
+	    slots.put( blockId, slot );
+	    order.addFirst( slot );
+	}
+
+	void remove( int blockId ) {
+	    int slot = slots.get( blockId );
+	    if ( slot == BlockIndex.NONE )
+		return;
+	    slots.remove( blockId );
+	    order.remove( slot );
+	    free[freeCount++] = slot;
+	}
+
+	void removeLast( ) {
+	    int slot = order.last( );
+	    if ( slot != IntList.NONE )
+		remove( blocks[slot] );
+	}
+    }
+
+    // The original ThreadOS policy: the hand sweeps the pages, clearing
+    // reference bits, and evicts the first page whose bit is clear.
+    static class SecondChance extends CachePolicy {
+	private boolean reference[];
+	private int victim;
+
+	SecondChance( int pages ) {
+	    super( pages );
+	    reference = new boolean[ pages ];
+	    victim = pages - 1; // set the last frame as a previous victim
+	}
+
+	public void inserted( int page, int blockId ) {
+	    reference[page] = true;
+	}
+
+	public void accessed( int page ) {
+	    reference[page] = true;
+	}
+
+	public int victim( int blockId ) {
+	    while ( true ) {
+		victim = ( victim + 1 ) % pages;
+		if ( reference[victim] == false )
+		    return victim;
+		reference[victim] = false;
+	    }
+	}
+
+	public void removed( int page ) {
+	    reference[page] = false;
+	}
+    }
+
+    static class Lru extends CachePolicy {
+	private IntList recency;	// most recently used first
+
+	Lru( int pages ) {
+	    super( pages );
+	    recency = new IntList( pages );
+	}
+
+	public void inserted( int page, int blockId ) {
+	    recency.addFirst( page );
+	}
+
+	public void accessed( int page ) {
+	    recency.moveToFirst( page );
+	}
+
+	public int victim( int blockId ) {
+	    int page = recency.last( );
+	    if ( page != IntList.NONE )
+		recency.remove( page );
+	    return page;
+	}
+
+	public void removed( int page ) {
+	    recency.remove( page );
+	}
+    }
+
+    // 2Q (Johnson and Shasha). A block seen for the first time goes to the
+    // FIFO a1in, which holds about a quarter of the pages; hits there do not
+    // promote it. When it leaves a1in its id is kept in the ghost list
+    // a1out, and if it is missed again while remembered there it goes to
+    // the LRU am. A one-time scan thus only ever passes through a1in.
+    static class TwoQueue extends CachePolicy {
+	private IntList a1in;	// newest first
+	private IntList am;	// most recently used first
+	private GhostList a1out;
+	private int pageBlock[];
+	private final int kin;
+
+	TwoQueue( int pages ) {
+	    super( pages );
+	    a1in = new IntList( pages );
+	    am = new IntList( pages );
+	    a1out = new GhostList( pages / 2 );
+	    pageBlock = new int[ pages ];
+	    kin = Math.max( pages / 4, 1 );
+	}
+
+	public void inserted( int page, int blockId ) {
+	    pageBlock[page] = blockId;
+	    if ( a1out.contains( blockId ) ) {
+		a1out.remove( blockId );
+		am.addFirst( page );
+	    } else
+		a1in.addFirst( page );
+	}
+
+	public void accessed( int page ) {
+	    if ( am.contains( page ) )
+		am.moveToFirst( page );
+	}
+
+	public int victim( int blockId ) {
+	    int page;
+	    if ( a1in.size( ) == 0 && am.size( ) == 0 )
+		return IntList.NONE;
+	    if ( a1in.size( ) > kin || am.size( ) == 0 ) {
+		page = a1in.last( );
+		a1in.remove( page );
+		a1out.add( pageBlock[page] );
+	    } else {
+		page = am.last( );
+		am.remove( page );
+	    }
+	    return page;
+	}
+
+	public void removed( int page ) {
+	    a1in.remove( page );
+	    am.remove( page );
+	}
+    }
+
+    // ARC (Megiddo and Modha). t1 holds pages seen once recently, t2 pages
+    // seen at least twice; b1 and b2 remember the blocks evicted from
+    // each. A miss found in b1 means t1 was too small, one found in b2
+    // that t2 was, and the target size p of t1 moves accordingly.
+    static class Arc extends CachePolicy {
+	private IntList t1;	// most recent first
+	private IntList t2;
+	private GhostList b1;
+	private GhostList b2;
+	private int pageBlock[];
+	private int p;		// target size of t1
+	private int adaptedFor;	// the block victim( ) already adapted p for
+
+	Arc( int pages ) {
+	    super( pages );
+	    t1 = new IntList( pages );
+	    t2 = new IntList( pages );
+	    b1 = new GhostList( pages );
+	    b2 = new GhostList( pages );
+	    pageBlock = new int[ pages ];
+	    p = 0;
+	    adaptedFor = -1;
+	}
+
+	private void adapt( int blockId ) {
+	    if ( b1.contains( blockId ) )
+		p = Math.min( pages,
+			      p + Math.max( b2.size( ) / b1.size( ), 1 ) );
+	    else if ( b2.contains( blockId ) )
+		p = Math.max( 0,
+			      p - Math.max( b1.size( ) / b2.size( ), 1 ) );
+	    adaptedFor = blockId;
+	}
+
+	public int victim( int blockId ) {
+	    if ( t1.size( ) == 0 && t2.size( ) == 0 )
+		return IntList.NONE;
+	    boolean ghost = b1.contains( blockId ) || b2.contains( blockId );
+	    adapt( blockId );
+	    if ( ghost == false ) {
+		if ( t1.size( ) + b1.size( ) >= pages ) {
+		    if ( t1.size( ) < pages )
+			b1.removeLast( );
+		    else {
+			// b1 is empty and t1 fills the cache
+			int page = t1.last( );
+			t1.remove( page );
+			return page;
+		    }
+		} else if ( t1.size( ) + t2.size( ) + b1.size( ) + b2.size( )
+			    >= 2 * pages )
+		    b2.removeLast( );
+	    }
+	    return replace( blockId );
+	}
+
+	private int replace( int blockId ) {
+	    int page;
+	    if ( t1.size( ) > 0 && ( t1.size( ) > p || t2.size( ) == 0
+				     || ( b2.contains( blockId )
+					  && t1.size( ) == p ) ) ) {
+		page = t1.last( );
+		t1.remove( page );
+		b1.add( pageBlock[page] );
+	    } else {
+		page = t2.last( );
+		t2.remove( page );
+		b2.add( pageBlock[page] );
+	    }
+	    return page;
+	}
+
+	public void inserted( int page, int blockId ) {
+	    pageBlock[page] = blockId;
+	    if ( b1.contains( blockId ) || b2.contains( blockId ) ) {
+		if ( adaptedFor != blockId )
+		    adapt( blockId );
+		b1.remove( blockId );
+		b2.remove( blockId );
+		t2.addFirst( page );
+	    } else
+		t1.addFirst( page );
+	    adaptedFor = -1;
+	}
+
+	public void accessed( int page ) {
+	    t1.remove( page );
+	    t2.moveToFirst( page );
+	}
+
+	public void removed( int page ) {
+	    t1.remove( page );
+	    t2.remove( page );
+	}
+    }
+
+    // CLOCK-Pro (Jiang, Chen and Zhang). Resident hot and cold pages and
+    // the ids of recently evicted cold pages share one clock. A cold page
+    // re-used during its test period becomes hot; handCold evicts cold
+    // pages, handHot turns unused hot pages cold, and handTest ends test
+    // periods and drops evicted ids. The number of resident cold pages
+    // adapts: it grows when an evicted page comes back during its test
+    // period and shrinks when a test period ends without a re-use.
+    static class ClockPro extends CachePolicy {
+	private IntList clock;	// nodes 0 .. 2 * pages - 1 in clock order
+	private int nodeBlock[];
+	private int nodePage[];	// -1 for a non-resident node
+	private boolean hot[];
+	private boolean test[];	// in its test period
+	private boolean ref[];
+	private int pageNode[];
+	private BlockIndex nodes;	// block id -> node
+	private int free[];	// unused nodes
+	private int freeCount;
+	private int handHot, handCold, handTest;
+	private int hotCount, coldCount, nonResident;
+	private int coldTarget;
+
+	ClockPro( int pages ) {
+	    super( pages );
+	    int n = 2 * pages;
+	    clock = new IntList( n );
+	    nodeBlock = new int[ n ];
+	    nodePage = new int[ n ];
+	    hot = new boolean[ n ];
+	    test = new boolean[ n ];
+	    ref = new boolean[ n ];
+	    pageNode = new int[ pages ];
+	    nodes = new BlockIndex( n );
+	    free = new int[ n ];
+	    for ( freeCount = 0; freeCount < n; freeCount++ )
+		free[freeCount] = n - 1 - freeCount;
+	    handHot = handCold = handTest = IntList.NONE;
+	    hotCount = coldCount = nonResident = 0;
+	    coldTarget = Math.max( pages / 10, 1 );
+	}
+
+	// the node after node on the clock, wrapping around
+	private int advance( int node ) {
+	    int next = clock.next( node );
+	    return ( next == IntList.NONE ) ? clock.first( ) : next;
+	}
+
+	// new nodes go in just behind handHot, the head of the clock
+	private void link( int node ) {
+	    if ( handHot == IntList.NONE ) {
+		clock.addLast( node );
+		handHot = handCold = handTest = node;
+	    } else
+		clock.addBefore( handHot, node );
+	}
+
+	// takes node off the clock, moving any hand on it to the next node
+	private void detach( int node ) {
+	    if ( clock.size( ) == 1 )
+		handHot = handCold = handTest = IntList.NONE;
+	    else {
+		if ( handHot == node )
+		    handHot = advance( node );
+		if ( handCold == node )
+		    handCold = advance( node );
+		if ( handTest == node )
+		    handTest = advance( node );
+	    }
+	    clock.remove( node );
+	}
+
+	// detaches node and forgets its block
+	private void unlink( int node ) {
+	    detach( node );
+	    nodes.remove( nodeBlock[node] );
+	    free[freeCount++] = node;
+	}
+
+	public void inserted( int page, int blockId ) {
+	    int node = nodes.get( blockId );
+	    if ( node != BlockIndex.NONE ) {
+		// evicted during its test period and back already: the
+		// cold pages get more room and the block becomes hot
+		coldTarget = Math.min( coldTarget + 1, pages - 1 );
+		nonResident--;
+		detach( node );
+		hot[node] = true;
+		test[node] = false;
+		hotCount++;
+	    } else {
+		node = free[--freeCount];
+		nodeBlock[node] = blockId;
+		nodes.put( blockId, node );
+		hot[node] = false;
+		test[node] = true;
+		coldCount++;
+	    }
+	    ref[node] = false;
+	    nodePage[node] = page;
+	    pageNode[page] = node;
+	    link( node );
+	    while ( hotCount > pages - coldTarget && hotCount > 0 )
+		runHandHot( );
+	}
+
+	public void accessed( int page ) {
+	    ref[pageNode[page]] = true;
+	}
+
+	public int victim( int blockId ) {
+	    if ( hotCount == 0 && coldCount == 0 )
+		return IntList.NONE;
+	    if ( coldCount == 0 )
+		runHandHot( );
+	    while ( true ) {
+		int node = handCold;
+		handCold = advance( node );
+		if ( hot[node] || nodePage[node] < 0 )
+		    continue;
+		if ( ref[node] ) {
+		    ref[node] = false;
+		    if ( test[node] ) {
+			// re-used during its test period
+			hot[node] = true;
+			test[node] = false;
+			coldCount--;
+			hotCount++;
+			if ( coldCount == 0 )
+			    runHandHot( );
+		    } else
+			test[node] = true;
+		    continue;
+		}
+		int page = nodePage[node];
+		nodePage[node] = -1;
+		coldCount--;
+		if ( test[node] ) {
+		    nonResident++;
+		    while ( nonResident > pages )
+			runHandTest( );
+		} else
+		    unlink( node );
+		return page;
+	    }
+	}
+
+	// turns the first unreferenced hot page into a cold one, ending the
+	// test periods it passes on the way
+	private void runHandHot( ) {
+	    for ( int steps = 0; steps < 4 * pages && hotCount > 0; steps++ ) {
+		int node = handHot;
+		handHot = advance( node );
+		if ( hot[node] ) {
+		    if ( ref[node] )
+			ref[node] = false;
+		    else {
+			hot[node] = false;
+			hotCount--;
+			coldCount++;
+			return;
+		    }
+		} else
+		    endTest( node );
+	    }
+	}
+
+	// ends the test period of the next cold node with one
+	private void runHandTest( ) {
+	    for ( int steps = 0; steps < 4 * pages; steps++ ) {
+		int node = handTest;
+		handTest = advance( node );
+		if ( hot[node] == false && test[node] ) {
+		    endTest( node );
+		    return;
+		}
+	    }
+	}
+
+	private void endTest( int node ) {
+	    if ( test[node] == false )
+		return;
+	    test[node] = false;
+	    coldTarget = Math.max( coldTarget - 1, 1 );
+	    if ( nodePage[node] < 0 ) {
+		nonResident--;
+		unlink( node );
+	    }
+	}
+
+	public void removed( int page ) {
+	    int node = pageNode[page];
+	    if ( hot[node] )
+		hotCount--;
+	    else
+		coldCount--;
+	    nodePage[node] = -1;
+	    test[node] = false;
+	    unlink( node );
+	}
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.*;
+import java.util.*;
+
+// Replays a block trace written by Cache against each replacement policy
+// and prints the hit ratios, without touching a disk. Run it on the host:
+//
+//   java CacheReplay trace pages [policy ...]
+//
+// With no policies given, all of them are compared.
+public class CacheReplay {
+    private static final String policies[] =
+	{ "second-chance", "lru", "2q", "arc", "clock-pro" };
+
+    public static void main( String args[] ) throws IOException {
+	if ( args.length < 2 ) {
+	    System.err.println( "usage: java CacheReplay trace pages "
+				+ "[policy ...]" );
+	    System.exit( 1 );
+	}
+	int trace[] = load( args[0] );
+	int pages = Integer.parseInt( args[1] );
+	String names[] = ( args.length > 2 )
+	    ? Arrays.copyOfRange( args, 2, args.length ) : policies;
+	System.out.println( trace.length + " accesses, " + pages + " pages" );
+	for ( int i = 0; i < names.length; i++ ) {
+	    int hits = replay( trace, pages,
+			       CachePolicy.forName( names[i], pages ) );
+	    System.out.printf( "%-14s %8d hits  %6.2f%%\n", names[i], hits,
+			       100.0 * hits / Math.max( trace.length, 1 ) );
+	}
+    }
+
+    // the block ids of a trace; reads and writes count alike
+    private static int[] load( String fileName ) throws IOException {
+	Vector<Integer> blocks = new Vector<Integer>( );
+	BufferedReader in = new BufferedReader( new FileReader( fileName ) );
+	String line;
+	while ( ( line = in.readLine( ) ) != null ) {
+	    StringTokenizer token = new StringTokenizer( line );
+	    if ( token.countTokens( ) == 2 ) {
+		token.nextToken( );
+		blocks.addElement( Integer.parseInt( token.nextToken( ) ) );
+	    }
+	}
+	in.close( );
+	int trace[] = new int[ blocks.size( ) ];
+	for ( int i = 0; i < trace.length; i++ )
+	    trace[i] = blocks.elementAt( i );
+	return trace;
+    }
+
+    // the number of hits policy scores on trace with the given pages,
+    // bookkept the way Cache does it
+    static int replay( int trace[], int pages, CachePolicy policy ) {
+	BlockIndex index = new BlockIndex( pages );
+	int frame[] = new int[ pages ];
+	int used = 0;
+	int hits = 0;
+	for ( int n = 0; n < trace.length; n++ ) {
+	    int blockId = trace[n];
+	    int page = index.get( blockId );
+	    if ( page != BlockIndex.NONE ) {
+		policy.accessed( page );
+		hits++;
+		continue;
+	    }
+	    if ( used < pages )
+		page = used++;
+	    else {
+		page = policy.victim( blockId );
+		index.remove( frame[page] );
+	    }
+	    frame[page] = blockId;
+	    index.put( blockId, page );
+	    policy.inserted( page, blockId );
+	}
+	return hits;
+    }
+}
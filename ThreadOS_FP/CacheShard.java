@@ -0,0 +1,680 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// One independently locked part of a Cache. Each shard holds the blocks
+// whose ids hash to it, with its own pages, index and replacement policy,
+// so threads using different shards never wait for each other.
+public class CacheShard {
+    public static final int INVALID = -1;
+
+    private final int blockSize;
+    private final String storeName;
+    // The cached blocks, on the heap or in one off-heap slab. What the
+    // shard knows about each page is kept in the parallel arrays below,
+    // so a slab shard's heap footprint is a few words per page.
+    private PageStore store;
+    private final String policyName;
+    private CachePolicy policy;
+
+    private int frame[];	// per page, the disk block it holds, or INVALID
+    private boolean dirty[];
+    private BlockIndex index;	// block id -> page, in constant time
+    // Pages loaded by a sequential scan, newest first. They are kept from
+    // the policy and evicted first, so a scan cannot push out hot blocks.
+    private CachePolicy.IntList scanPages;
+    // per page, how many times it is pinned; a pinned page is in neither
+    // the policy nor the scan pages
+    private int pins[];
+    private int pinnedPages;
+    private int pinPercent = 0;	// of the pages that may be pinned
+    private int freePages[];	// stack of pages holding no block
+    private int freeCount;
+
+    // Per page, null unless I/O is in flight. Disk I/O for a miss runs
+    // outside the shard lock; anyone wanting the block being loaded, or
+    // the victim being written back, waits on the latch and looks again.
+    private Latch latch[];
+    // per page, a dirty block being written back; it stays in the page
+    // until then, so no copy is made
+    private int victim[];
+    private BlockIndex evicting;	// victim block id -> page
+
+    private Latch cleaning[];	// per page, null unless being flushed
+    private int version[];	// per page, bumped by every write into it
+    private long dirtySince[];	// per page, when it last turned dirty
+    private volatile int dirtyCount;
+
+    // counts dirty write-backs started and finished, in all shards; a
+    // vectored read uses it to detect one racing with it
+    private final AtomicLong evictions;
+
+    // a block-sized buffer per thread, for slab pages on their way to disk
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>( ) {
+	    protected byte[] initialValue( ) {
+		return new byte[ blockSize ];
+	    }
+	};
+
+    // A dirty page offered to the flusher, and the copy it writes. The
+    // flusher copies the page with clean( ), writes the copy and reports
+    // back with cleaned( ); the page can be read and written meanwhile,
+    // but not evicted.
+    static class DirtyPage {
+	CacheShard shard;
+	int page;
+	int blockId;
+	long since;	// when the page turned dirty
+	int version;
+	byte data[];
+    }
+
+    // Released once a page's I/O is done. Waiters recheck the shard.
+    static class Latch {
+	private boolean open = false;
+
+	synchronized void release( ) {
+	    open = true;
+	    notifyAll( );
+	}
+
+	synchronized void await( ) {
+	    while ( open == false ) {
+		try {
+		    wait( );
+		} catch ( InterruptedException e ) {
+		    SysLib.cerr( e.toString( ) + "\n" );
+		}
+	    }
+	}
+    }
+
+    // storeName as accepted by PageStore.forName, policyName as accepted
+    // by CachePolicy.forName
+    public CacheShard( int blockSize, int cacheBlocks, String storeName,
+		       String policyName, AtomicLong evictions ) {
+	this.blockSize = blockSize;
+	this.storeName = storeName;
+	this.policyName = policyName;
+	this.evictions = evictions;
+	allocate( cacheBlocks );
+	for ( int i = cacheBlocks - 1; i >= 0; i-- )
+	    freePages[freeCount++] = i;
+    }
+
+    // sets up empty bookkeeping for cacheBlocks pages
+    private void allocate( int cacheBlocks ) {
+	store = PageStore.forName( storeName, cacheBlocks, blockSize );
+	policy = CachePolicy.forName( policyName, cacheBlocks );
+	scanPages = new CachePolicy.IntList( cacheBlocks );
+	frame = new int[ cacheBlocks ];
+	dirty = new boolean[ cacheBlocks ];
+	victim = new int[ cacheBlocks ];
+	pins = new int[ cacheBlocks ];
+	pinnedPages = 0;
+	for ( int i = 0; i < cacheBlocks; i++ )
+	    frame[i] = victim[i] = INVALID;
+	index = new BlockIndex( cacheBlocks );
+	freePages = new int[ cacheBlocks ];
+	freeCount = 0;
+	latch = new Latch[ cacheBlocks ];
+	evicting = new BlockIndex( cacheBlocks );
+	cleaning = new Latch[ cacheBlocks ];
+	version = new int[ cacheBlocks ];
+	dirtySince = new long[ cacheBlocks ];
+	dirtyCount = 0;
+    }
+
+    private void setDirty( int i, boolean on ) {
+	if ( dirty[i] == on )
+	    return;
+	dirty[i] = on;
+	if ( on ) {
+	    dirtySince[i] = System.currentTimeMillis( );
+	    dirtyCount++;
+	}
+	else
+	    dirtyCount--;
+    }
+
+    // the number of pages
+    public synchronized int size( ) {
+	return frame.length;
+    }
+
+    // Changes the number of pages to n, once no I/O is in flight. If the
+    // shard shrinks, the blocks its policy would evict first go, written
+    // back if dirty. The kept blocks are handed to a new policy, least
+    // valuable first, so the policy's own history starts over. Pinned
+    // blocks are always kept: the shard does not shrink below the size
+    // that allows its pinned pages.
+    public void resize( int n ) {
+	n = Math.max( n, 1 );
+	while ( true ) {
+	    Latch wait;
+	    synchronized ( this ) {
+		wait = anyLatch( );
+		if ( wait == null ) {
+		    if ( pinnedPages > 0 )
+			n = Math.max( n, pinnedPages * 100
+				      / Math.max( pinPercent, 1 ) + 1 );
+		    if ( n != frame.length )
+			rebuild( n );
+		    return;
+		}
+	    }
+	    wait.await( );
+	}
+    }
+
+    private void rebuild( int n ) {
+	// rank the cached pages: scan pages, oldest first, the policy's
+	// pages in the order it gives them up as victims, and the pinned
+	// pages; a block id no disk has keeps ghost-aware policies from
+	// adapting
+	int resident = frame.length - freeCount;
+	int held = policyPages( );
+	int ranked[] = new int[ resident ];
+	boolean seen[] = new boolean[ frame.length ];
+	boolean scanned[] = new boolean[ frame.length ];
+	int k = 0;
+	while ( scanPages.size( ) > 0 ) {
+	    int i = scanPages.last( );
+	    scanPages.remove( i );
+	    seen[i] = scanned[i] = true;
+	    ranked[k++] = i;
+	}
+	// the policy is drained of the pages it holds, and no further: the
+	// pinned pages were never given to it
+	for ( int tries = 0; held > 0 && tries < 4 * frame.length; tries++ ) {
+	    int i = policy.victim( Integer.MAX_VALUE );
+	    if ( i < 0 || i >= frame.length || seen[i]
+		 || frame[i] == INVALID || pins[i] > 0 )
+		continue;
+	    seen[i] = true;
+	    ranked[k++] = i;
+	    held--;
+	}
+	for ( int i = 0; k < resident && i < frame.length; i++ ) {
+	    if ( seen[i] == false && frame[i] != INVALID ) {
+		seen[i] = true;
+		ranked[k++] = i;
+	    }
+	}
+
+	// evict what no longer fits
+	int first = Math.max( resident - n, 0 );
+	for ( k = 0; k < first; k++ )
+	    writeBack( ranked[k] );
+
+	PageStore oldStore = store;
+	int oldFrame[] = frame;
+	boolean oldDirty[] = dirty;
+	int oldPins[] = pins;
+	int oldVersion[] = version;
+	long oldSince[] = dirtySince;
+	allocate( n );
+	for ( k = first; k < resident; k++ ) {
+	    int from = ranked[k];
+	    int i = k - first;
+	    store.write( i, oldStore.array( from, scratch.get( ) ), 0 );
+	    frame[i] = oldFrame[from];
+	    version[i] = oldVersion[from];
+	    setDirty( i, oldDirty[from] );
+	    dirtySince[i] = oldSince[from];
+	    index.put( frame[i], i );
+	    pins[i] = oldPins[from];
+	    if ( pins[i] > 0 )
+		pinnedPages++;
+	    else if ( scanned[from] )
+		scanPages.addFirst( i );
+	    else
+		policy.inserted( i, frame[i] );
+	}
+	for ( int i = n - 1; i >= resident - first; i-- )
+	    freePages[freeCount++] = i;
+    }
+
+    // lets up to percent percent of the pages be pinned; pins already
+    // beyond that stay
+    public synchronized void setPinPercent( int percent ) {
+	pinPercent = percent;
+    }
+
+    // Pins blockId, loading it if it is not cached. Fails if the block
+    // cannot be read, or if pinning it would pin more than pinPercent
+    // percent of the pages.
+    public boolean pin( int blockId ) {
+	while ( true ) {
+	    Latch wait;
+	    synchronized ( this ) {
+		int i = index.get( blockId );
+		if ( i != BlockIndex.NONE && latch[i] == null ) {
+		    if ( pins[i] == 0 ) {
+			if ( pinnedPages + 1 > frame.length * pinPercent / 100 )
+			    return false;
+			forget( i );
+			pinnedPages++;
+		    }
+		    pins[i]++;
+		    return true;
+		}
+		wait = ( i != BlockIndex.NONE ) ? latch[i] : busy( blockId );
+	    }
+	    if ( wait != null )
+		wait.await( );
+	    else if ( read( blockId, 0, new byte[ blockSize ], 0, blockSize,
+			    StreamDetector.RANDOM ) == false )
+		return false;
+	}
+    }
+
+    // Takes one pin off blockId; the last one hands the page back to the
+    // policy. Fails if blockId is not pinned.
+    public synchronized boolean unpin( int blockId ) {
+	int i = index.get( blockId );
+	if ( i == BlockIndex.NONE || pins[i] == 0 )
+	    return false;
+	if ( --pins[i] == 0 ) {
+	    pinnedPages--;
+	    policy.inserted( i, blockId );
+	}
+	return true;
+    }
+
+    // the number of dirty pages; read without the lock
+    public int dirtyPages( ) {
+	return dirtyCount;
+    }
+
+    // the latch of page i's I/O in flight, or null
+    private Latch pending( int i ) {
+	return ( latch[i] != null ) ? latch[i] : cleaning[i];
+    }
+
+    private int findFreePage( ) {
+	return ( freeCount > 0 ) ? freePages[--freeCount] : -1;
+    }
+
+    // writes page i back under the shard lock; used by sync and flush
+    private void writeBack( int victimEntry ) {
+	if ( frame[victimEntry] != INVALID && dirty[victimEntry] == true ) {
+	    SysLib.rawwrite( frame[victimEntry],
+			     store.array( victimEntry, scratch.get( ) ) );
+	    setDirty( victimEntry, false );
+	}
+    }
+
+    // the latch to wait on before touching blockId, or null if it is free
+    private Latch busy( int blockId ) {
+	int i = index.get( blockId );
+	if ( i == BlockIndex.NONE )
+	    i = evicting.get( blockId );
+	return ( i == BlockIndex.NONE ) ? null : latch[i];
+    }
+
+    // Takes a page for blockId and maps it, as a scan block if scan is
+    // true. The oldest idle scan page is evicted first, except that a scan
+    // takes the policy's victim while scan pages fill less than a quarter
+    // of the shard, lest one scan recycle a single page and a file read
+    // twice never hit. The policy is asked only if it holds pages; right
+    // after a sequential write every page may be a scan page. If the
+    // victim is dirty, the page is latched and keeps the victim's contents
+    // for writeVictim( ). If the page to take still has I/O in flight,
+    // it is given back and -1 - page is returned; wait on pending( page )
+    // and retry.
+    private int allocatePage( int blockId, boolean scan ) {
+	int i = findFreePage( );
+	if ( i == -1 ) {
+	    i = scanPages.last( );
+	    while ( i != CachePolicy.IntList.NONE && pending( i ) != null )
+		i = scanPages.prev( i );
+	    if ( policyPages( ) > 0
+		 && ( i == CachePolicy.IntList.NONE
+		      || ( scan && scanPages.size( ) < frame.length / 4 ) ) ) {
+		// a policy that sweeps every page may pick a pinned one
+		do
+		    i = policy.victim( blockId );
+		while ( pins[i] > 0 );
+		if ( pending( i ) != null ) {
+		    policy.inserted( i, frame[i] );
+		    return -1 - i;
+		}
+	    }
+	    else if ( i == CachePolicy.IntList.NONE )
+		// every scan page is busy and the policy has none
+		return -1 - scanPages.last( );
+	    // a policy that sweeps every page may pick a scan page too
+	    scanPages.remove( i );
+	    int old = frame[i];
+	    index.remove( old );
+	    if ( dirty[i] ) {
+		victim[i] = old;
+		evicting.put( old, i );
+		latch[i] = new Latch( );
+		evictions.incrementAndGet( );
+	    }
+	}
+	frame[i] = blockId;
+	setDirty( i, false );
+	index.put( blockId, i );
+	if ( scan )
+	    scanPages.addFirst( i );
+	else
+	    policy.inserted( i, blockId );
+	return i;
+    }
+
+    // Tells the policy about a hit on page i. A scan page is handed to the
+    // policy on any hit but the scan touching its own block again.
+    private void touch( int i, int access ) {
+	if ( pins[i] > 0 )
+	    return;
+	if ( scanPages.contains( i ) ) {
+	    if ( access != StreamDetector.AGAIN ) {
+		scanPages.remove( i );
+		policy.inserted( i, frame[i] );
+	    }
+	}
+	else
+	    policy.accessed( i );
+    }
+
+    // the number of pages the policy holds: those neither free, pinned
+    // nor scan pages
+    private int policyPages( ) {
+	return frame.length - freeCount - scanPages.size( ) - pinnedPages;
+    }
+
+    // takes page i away from the policy or the scan pages, or unpins it
+    private void forget( int i ) {
+	if ( pins[i] > 0 ) {
+	    pins[i] = 0;
+	    pinnedPages--;
+	}
+	else if ( scanPages.contains( i ) )
+	    scanPages.remove( i );
+	else
+	    policy.removed( i );
+    }
+
+    // Writes back the victim still held by page i. Called without the
+    // lock; the latch keeps everyone else from changing the page.
+    private void writeVictim( int i ) {
+	if ( victim[i] == INVALID )
+	    return;
+	SysLib.rawwrite( victim[i], store.array( i, scratch.get( ) ) );
+	synchronized ( this ) {
+	    evicting.remove( victim[i] );
+	    victim[i] = INVALID;
+	}
+	evictions.incrementAndGet( );
+    }
+
+    // unmaps page i, returning it to the free pages
+    private void release( int i ) {
+	index.remove( frame[i] );
+	forget( i );
+	frame[i] = INVALID;
+	setDirty( i, false );
+	freePages[freeCount++] = i;
+    }
+
+    // Copies length bytes of blockId, from blockOffset on, into buffer at
+    // offset; access is the read's StreamDetector kind. A miss loads the
+    // whole block into the page; the disk reads it into buffer itself when
+    // the slice is the whole block, and into a scratch block otherwise.
+    public boolean read( int blockId, int blockOffset, byte buffer[],
+			 int offset, int length, int access ) {
+	int i;
+	Latch loading;
+	while ( true ) {
+	    Latch wait;
+	    synchronized ( this ) {
+		wait = busy( blockId );
+		if ( wait == null ) {
+		    // locate a valid page
+		    i = index.get( blockId );
+		    if ( i != BlockIndex.NONE ) {
+			// cache hit!!
+			store.read( i, blockOffset, buffer, offset, length );
+			touch( i, access );
+			return true;
+		    }
+		    // page miss!! latch a page and load it outside the lock
+		    i = allocatePage( blockId,
+				      access != StreamDetector.RANDOM );
+		    if ( i >= 0 ) {
+			if ( latch[i] == null )
+			    latch[i] = new Latch( );
+			loading = latch[i];
+			break;
+		    }
+		    wait = pending( -1 - i );
+		}
+	    }
+	    wait.await( );
+	}
+
+	writeVictim( i );
+	boolean whole = blockOffset == 0 && offset == 0 && length == blockSize;
+	byte block[] = whole ? buffer : scratch.get( );
+	boolean ok = SysLib.rawread( blockId, block ) != Kernel.ERROR;
+	synchronized ( this ) {
+	    if ( ok ) {
+		store.write( i, block, 0 );
+		if ( whole == false )
+		    System.arraycopy( block, blockOffset, buffer, offset,
+				      length );
+	    }
+	    else
+		release( i );
+	    latch[i] = null;
+	}
+	loading.release( );
+	return ok;
+    }
+
+    public boolean write( int blockId, byte buffer[], int access ) {
+	int i;
+	Latch loading;
+	while ( true ) {
+	    Latch wait;
+	    synchronized ( this ) {
+		wait = busy( blockId );
+		if ( wait == null ) {
+		    // locate a valid page
+		    i = index.get( blockId );
+		    if ( i != BlockIndex.NONE )
+			touch( i, access );
+		    else
+			// page miss!! a whole block needs no read
+			i = allocatePage( blockId,
+				      access != StreamDetector.RANDOM );
+
+		    if ( i >= 0 ) {
+			loading = latch[i];
+			if ( loading != null )
+			    break;
+			// cache the block, to be written back later
+			store.write( i, buffer, 0 );
+			setDirty( i, true );
+			version[i]++;
+			return true;
+		    }
+		    wait = pending( -1 - i );
+		}
+	    }
+	    wait.await( );
+	}
+
+	// the page is free once its victim is on the disk
+	writeVictim( i );
+	synchronized ( this ) {
+	    store.write( i, buffer, 0 );
+	    setDirty( i, true );
+	    version[i]++;
+	    latch[i] = null;
+	}
+	loading.release( );
+	return true;
+    }
+
+    // Copies blockId into buffer at offset if this shard has it, either
+    // cached or on its way to the disk. Used by vectored reads.
+    public boolean overlay( int blockId, byte buffer[], int offset ) {
+	while ( true ) {
+	    Latch wait;
+	    synchronized ( this ) {
+		int i = evicting.get( blockId );
+		if ( i != BlockIndex.NONE ) {
+		    store.read( i, buffer, offset );
+		    return true;
+		}
+		wait = busy( blockId );
+		if ( wait == null ) {
+		    i = index.get( blockId );
+		    if ( i == BlockIndex.NONE )
+			return false;
+		    store.read( i, buffer, offset );
+		    if ( pins[i] == 0 && scanPages.contains( i ) == false )
+			policy.accessed( i );
+		    return true;
+		}
+	    }
+	    wait.await( );
+	}
+    }
+
+    // Called before a vectored write of blockId: waits until no write-back
+    // of it is in flight and marks a cached copy clean, so that no older
+    // contents reach the disk after the vectored write.
+    public void supersede( int blockId ) {
+	while ( true ) {
+	    Latch wait;
+	    synchronized ( this ) {
+		wait = busy( blockId );
+		int i = index.get( blockId );
+		if ( wait == null && i != BlockIndex.NONE )
+		    wait = cleaning[i];
+		if ( wait == null ) {
+		    if ( i != BlockIndex.NONE )
+			setDirty( i, false );
+		    return;
+		}
+	    }
+	    wait.await( );
+	}
+    }
+
+    // Called after a vectored write: refreshes a cached copy of blockId
+    // from buffer at offset.
+    public void update( int blockId, byte buffer[], int offset ) {
+	while ( true ) {
+	    Latch wait;
+	    synchronized ( this ) {
+		wait = busy( blockId );
+		if ( wait == null ) {
+		    int i = index.get( blockId );
+		    if ( i != BlockIndex.NONE ) {
+			store.write( i, buffer, offset );
+			setDirty( i, false );
+			version[i]++;
+		    }
+		    return;
+		}
+	    }
+	    wait.await( );
+	}
+    }
+
+    // the latch of some page with I/O in flight, or null
+    private Latch anyLatch( ) {
+	for ( int i = 0; i < latch.length; i++ )
+	    if ( pending( i ) != null )
+		return pending( i );
+	return null;
+    }
+
+    // Adds the dirty pages the flusher may clean now to out.
+    public synchronized void dirtyPages( Vector<DirtyPage> out ) {
+	for ( int i = 0; i < frame.length; i++ ) {
+	    if ( dirty[i] && pending( i ) == null ) {
+		DirtyPage d = new DirtyPage( );
+		d.shard = this;
+		d.page = i;
+		d.blockId = frame[i];
+		d.since = dirtySince[i];
+		out.addElement( d );
+	    }
+	}
+    }
+
+    // Starts cleaning d: copies the page and keeps it from being evicted
+    // until cleaned( d ). False if d is no longer dirty or is busy.
+    public synchronized boolean clean( DirtyPage d ) {
+	int i = d.page;
+	if ( i >= frame.length || frame[i] != d.blockId
+	     || dirty[i] == false || pending( i ) != null )
+	    return false;
+	d.data = new byte[ blockSize ];
+	store.read( i, d.data, 0 );
+	d.version = version[i];
+	cleaning[i] = new Latch( );
+	return true;
+    }
+
+    // Ends cleaning d. If the copy reached the disk and the page was not
+    // written since, the page is clean now.
+    public void cleaned( DirtyPage d, boolean written ) {
+	Latch done;
+	synchronized ( this ) {
+	    int i = d.page;
+	    if ( written && version[i] == d.version )
+		setDirty( i, false );
+	    done = cleaning[i];
+	    cleaning[i] = null;
+	}
+	done.release( );
+    }
+
+    // writes every dirty page back to the disk, keeping it cached, once
+    // all I/O in flight has finished
+    public void writeBack( ) {
+	while ( true ) {
+	    Latch wait;
+	    synchronized ( this ) {
+		wait = anyLatch( );
+		if ( wait == null ) {
+		    for ( int i = 0; i < frame.length; i++ )
+			writeBack( i );
+		    return;
+		}
+	    }
+	    wait.await( );
+	}
+    }
+
+    // writes every dirty page back and empties the shard
+    public void flush( ) {
+	while ( true ) {
+	    Latch wait;
+	    synchronized ( this ) {
+		wait = anyLatch( );
+		if ( wait == null ) {
+		    for ( int i = 0; i < frame.length; i++ ) {
+			writeBack( i );
+			if ( frame[i] != INVALID )
+			    forget( i );
+			frame[i] = INVALID;
+		    }
+		    index.clear( );
+		    freeCount = 0;
+		    for ( int i = frame.length - 1; i >= 0; i-- )
+			freePages[freeCount++] = i;
+		    return;
+		}
+	    }
+	    wait.await( );
+	}
+    }
+}
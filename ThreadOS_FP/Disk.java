@@ -1,165 +1,336 @@
 import java.io.*;
+import java.util.*;
 
-public class Disk extends Thread {
+public class Disk extends Thread implements BlockDevice {
     public static final int blockSize = 512;
-    private final int trackSize = 10;
-    private final int transferTime = 20;
-    private final int delayPerTrack = 1;
+    private DiskModel model;	// how long each command takes
+    private int trackSize;
     private int diskSize;
+    private String fileName;	// the host file holding the image
 
-    private byte data[];
+    // kinds of backing store selectable at boot
+    public static final int HEAP_IMAGE = 0;
+    public static final int MAPPED_IMAGE = 1;
+    public static final int LAZY_IMAGE = 2;
+    private DiskImage image;
 
-    private int command;
-    private final int IDLE = 0;
-    private final int READ = 1;
-    private final int WRITE = 2;
-    private final int SYNC = 3;
-    private boolean readyBuffer;
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int SYNC = 3;
+
+    // Requests accepted but not yet served, in arrival order. The
+    // scheduler decides which of them the disk thread serves next.
+    private final int maxRequests = 64;
+    private Vector<DiskRequest> pending;
+    private DiskScheduler scheduler;
+
+    private long syncedBytes;	// bytes written by the last SYNC
+    private Thread writer;	// persists the last checkpoint
+    private long busyTime;	// microseconds spent serving requests
+    private long tracksCrossed;	// tracks the head has moved over
+    private long requests;	// requests served so far
 
-    private byte[] buffer;
     private int currentBlockId;
     private int targetBlockId;
 
+    // The on-device track buffer. After each READ the disk keeps a copy
+    // of the whole track the head ended on, so that later READs of blocks
+    // on that track complete without a seek. A WRITE to the track drops
+    // the copy. The original disk had no track buffer, so it is off
+    // unless turned on.
+    private boolean readAhead;
+    private byte trackBuffer[];
+    private int bufferedTrack;	// -1 if the buffer holds nothing
+    private long trackBufferHits;	// READs served from the buffer
+
     public Disk( int totalBlocks ) {
+	this( totalBlocks, "DISK", HEAP_IMAGE, "fifo", new DiskModel.Hdd( ) );
+    }
+
+    public Disk( int totalBlocks, String fileName, int imageType,
+		 String schedule, DiskModel model ) {
 	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-	data = new byte[ diskSize * blockSize ];
-	command = IDLE;
-	readyBuffer = false;
-	buffer = null;
+	this.fileName = fileName;
+	this.model = model;
+	trackSize = model.getTrackSize( );
+	pending = new Vector<DiskRequest>( );
+	scheduler = DiskScheduler.forName( schedule, trackSize );
+	syncedBytes = 0;
+	busyTime = 0;
+	tracksCrossed = 0;
+	requests = 0;
 	currentBlockId = 0;
 	targetBlockId = 0;
-	try {
-	    FileInputStream ifstream = new FileInputStream( "DISK" );
-	    int readableSize = ( ifstream.available( ) < data.length ) ?
-		ifstream.available( ) : data.length; 
-	    ifstream.read( data, 0, readableSize );
-	    ifstream.close( );
-	} catch ( FileNotFoundException e ) {
-	    SysLib.cerr( "threadOS: DISK created\n" );
-	} catch ( IOException e ) {
-	    SysLib.cerr( e.toString( ) + "\n" );
+	readAhead = false;
+	trackBuffer = new byte[ trackSize * blockSize ];
+	bufferedTrack = -1;
+	trackBufferHits = 0;
+	if ( imageType == MAPPED_IMAGE ) {
+	    try {
+		image = new MappedDiskImage( fileName, diskSize );
+	    } catch ( IOException e ) {
+		SysLib.cerr( "threadOS: cannot map " + fileName + " ("
+			     + e.toString( ) + "), using a heap image\n" );
+	    }
+	}
+	else if ( imageType == LAZY_IMAGE )
+	    image = new LazyDiskImage( fileName, diskSize );
+	if ( image == null ) {
+	    try {
+		image = new HeapDiskImage( fileName, diskSize );
+	    } catch ( IOException e ) {
+		SysLib.cerr( "threadOS: " + e.getMessage( )
+			     + ", using a lazy image\n" );
+		image = new LazyDiskImage( fileName, diskSize );
+	    }
 	}
     }
 
-    public synchronized boolean read( int blockId, byte buffer[] ) {
+    // The following methods queue a command and return its request, on
+    // which the caller waits for completion. They return null if the
+    // queue is full, in which case the caller retries after the next disk
+    // interrupt. A request for a block outside the disk fails at once.
+    public synchronized DiskRequest read( int blockId, byte buffer[] ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	if ( blockId < 0 || blockId >= diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
-	    return false;
+	    return rejected( new DiskRequest( READ, blockId, 1, buffer ) );
 	}
-
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = READ;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+	return enqueue( new DiskRequest( READ, blockId, 1, buffer ) );
     }
 
-    public synchronized boolean write( int blockId, byte buffer[] ) {
+    public synchronized DiskRequest write( int blockId, byte buffer[] ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	if ( blockId < 0 || blockId >= diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
-	    return false;
+	    return rejected( new DiskRequest( WRITE, blockId, 1, buffer ) );
 	}
+	return enqueue( new DiskRequest( WRITE, blockId, 1, buffer ) );
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = WRITE;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+    // Vectored versions of read and write: transfer buffer.length /
+    // blockSize consecutive blocks starting at blockId in one command,
+    // paying a single seek.
+    public synchronized DiskRequest readv( int blockId, byte buffer[] ) {
+	int count = buffer.length / blockSize;
+
+	if ( blockId < 0 || count < 1 || blockId + count > diskSize ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for readv\n" );
+	    return rejected( new DiskRequest( READ, blockId, count, buffer ) );
+	}
+	return enqueue( new DiskRequest( READ, blockId, count, buffer ) );
     }
 
-    public synchronized boolean sync( ) {
-	
-	if ( command == IDLE && readyBuffer == false ) {
-	    command = SYNC;
-	    notify( );
-	    // System.out.println( "DISK sync notified the disk" );
-	    return true;
-	} else
-	    return false;
+    public synchronized DiskRequest writev( int blockId, byte buffer[] ) {
+	int count = buffer.length / blockSize;
+
+	if ( blockId < 0 || count < 1 || blockId + count > diskSize ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for writev\n" );
+	    return rejected( new DiskRequest( WRITE, blockId, count, buffer ) );
+	}
+	return enqueue( new DiskRequest( WRITE, blockId, count, buffer ) );
+    }
+
+    public synchronized DiskRequest sync( ) {
+	return enqueue( new DiskRequest( SYNC, currentBlockId, 0, null ) );
+    }
+
+    // true if n more requests fit in the queue
+    public synchronized boolean hasRoom( int n ) {
+	return pending.size( ) + n <= maxRequests;
+    }
+
+    private DiskRequest rejected( DiskRequest request ) {
+	request.fail( );
+	return request;
+    }
+
+    private DiskRequest enqueue( DiskRequest request ) {
+	if ( pending.size( ) >= maxRequests )
+	    return null;
+	pending.addElement( request );
+	notify( );
+	return request;
+    }
+
+    // the number of bytes the last SYNC wrote to the host file
+    public synchronized long getSyncedBytes( ) {
+	return syncedBytes;
+    }
+
+    // the milliseconds spent serving requests, the tracks crossed, and
+    // the number of requests served, since boot
+    public synchronized long getBusyTime( ) {
+	return busyTime / 1000;
     }
 
-    public synchronized boolean testAndResetReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    readyBuffer = false;
-	    return true;
-	} else
-	    return false;
+    public synchronized long getTracksCrossed( ) {
+	return tracksCrossed;
     }
 
-    public synchronized boolean testReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    return true;
-	} else
-	    return false;
+    public synchronized long getRequests( ) {
+	return requests;
     }
 
-    private synchronized void waitCommand( ) {
-	while ( command == IDLE ) {
+    // the number of READs served from the track buffer, since boot
+    public synchronized long getTrackBufferHits( ) {
+	return trackBufferHits;
+    }
+
+    // turns the track buffer on or off; call before start( )
+    public void setReadAhead( boolean on ) {
+	readAhead = on;
+	bufferedTrack = -1;
+    }
+
+    // Waits for a request and removes the one to serve next. Only requests
+    // that do not depend on an earlier pending request are offered to the
+    // scheduler, so reordering never changes what a read returns.
+    private synchronized DiskRequest waitRequest( ) {
+	while ( pending.size( ) == 0 ) {
 	    try {
 		wait( );
 	    } catch ( InterruptedException e ) {
 		SysLib.cerr( e.toString( ) + "\n" );
 	    }
-	    readyBuffer = false;
 	}
+	Vector<DiskRequest> ready = new Vector<DiskRequest>( );
+	for ( int i = 0; i < pending.size( ); i++ ) {
+	    DiskRequest r = pending.elementAt( i );
+	    boolean free = true;
+	    for ( int j = 0; j < i && free; j++ )
+		free = !r.dependsOn( pending.elementAt( j ) );
+	    if ( free )
+		ready.addElement( r );
+	}
+	DiskRequest next =
+	    ready.elementAt( scheduler.next( ready, currentBlockId / trackSize ) );
+	pending.removeElement( next );
+	return next;
     }
 
-    private void seek( ) {
-	int seekTime = transferTime + delayPerTrack 
-	    * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
-	try {
-	    Thread.sleep( seekTime );
-	} catch( InterruptedException e ) {
-	    SysLib.cerr( e.toString( ) + "\n" );
+    // moves the head to targetBlockId and transfers count blocks from
+    // there on, taking as long as the disk model says; the head is left
+    // over the last block transferred
+    private void seek( int count ) {
+	long time = model.serviceTime( currentBlockId, targetBlockId, count );
+	if ( time > 0 ) {
+	    try {
+		Thread.sleep( time / 1000, ( int )( time % 1000 ) * 1000 );
+	    } catch( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
 	}
-	currentBlockId = targetBlockId;
+	synchronized ( this ) {
+	    busyTime += time;
+	    tracksCrossed +=
+		Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+	    requests++;
+	}
+	currentBlockId = targetBlockId + Math.max( count - 1, 0 );
+    }
+
+    // true if every block of a READ is in the track buffer
+    private boolean inTrackBuffer( DiskRequest request ) {
+	return readAhead && bufferedTrack >= 0
+	    && request.blockId / trackSize == bufferedTrack
+	    && ( request.blockId + request.count - 1 ) / trackSize
+	       == bufferedTrack;
+    }
+
+    // copies the track under the head into the track buffer; the blocks
+    // pass under the head anyway, so this costs no extra time
+    private void fillTrackBuffer( ) {
+	int track = currentBlockId / trackSize;
+	int first = track * trackSize;
+	for ( int i = 0; i < trackSize && first + i < diskSize; i++ )
+	    image.read( first + i, trackBuffer, i * blockSize );
+	bufferedTrack = track;
+    }
+
+    // drops the track buffer if a WRITE touches the buffered track
+    private void invalidateTrackBuffer( DiskRequest request ) {
+	if ( bufferedTrack >= 0
+	     && request.blockId / trackSize <= bufferedTrack
+	     && ( request.blockId + request.count - 1 ) / trackSize
+		>= bufferedTrack )
+	    bufferedTrack = -1;
     }
 
-    private synchronized void finishCommand( ) {
-	command = IDLE;
-	readyBuffer = true;
+    // Serves a SYNC: takes a checkpoint of the image and hands it to a
+    // background writer, so the disk thread can go on with the requests
+    // behind the SYNC. The SYNC itself finishes once the checkpoint is on
+    // the host. A new checkpoint waits for the previous one's writer.
+    private void checkpoint( final DiskRequest request ) {
+	awaitWriter( );
+	final BitSet blocks = image.checkpoint( );
+	writer = new Thread( ) {
+		public void run( ) {
+		    long written = image.sync( blocks );
+		    synchronized ( Disk.this ) {
+			syncedBytes = written;
+		    }
+		    finishRequest( request );
+		}
+	    };
+	writer.start( );
+    }
+
+    // waits until the last checkpoint is on the host
+    private void awaitWriter( ) {
+	if ( writer != null ) {
+	    try {
+		writer.join( );
+	    } catch ( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+    }
+
+    private void finishRequest( DiskRequest request ) {
+	request.finish( );
 	SysLib.disk( ); // a disk interrupt
     }
 
     public void run ( ) {
 	
 	while ( true ) {
-	    waitCommand( );
-	    seek( );
-	    // System.out.println( "Disk: command = " + command );
-	    switch( command ) {
+	    DiskRequest request = waitRequest( );
+	    if ( request.command == READ && inTrackBuffer( request ) ) {
+		int offset = ( request.blockId % trackSize ) * blockSize;
+		System.arraycopy( trackBuffer, offset, request.buffer, 0,
+				  request.count * blockSize );
+		synchronized ( this ) {
+		    trackBufferHits++;
+		    requests++;
+		}
+		finishRequest( request );
+		continue;
+	    }
+	    targetBlockId = request.blockId;
+	    seek( request.count );
+	    // System.out.println( "Disk: command = " + request.command );
+	    switch( request.command ) {
 	    case READ:
-		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
-				  blockSize );
+		for ( int i = 0; i < request.count; i++ )
+		    image.read( targetBlockId + i, request.buffer, i * blockSize );
+		if ( readAhead )
+		    fillTrackBuffer( );
 		break;
 	    case WRITE:
-		System.arraycopy( buffer, 0, 
-				  data, targetBlockId * blockSize, 
-				  blockSize );
+		// an image that cannot preserve the checkpoint must not
+		// change it before the writer is done
+		if ( image.preservesCheckpoint( ) == false )
+		    awaitWriter( );
+		for ( int i = 0; i < request.count; i++ )
+		    image.write( targetBlockId + i, request.buffer, i * blockSize );
+		invalidateTrackBuffer( request );
 		break;
 	    case SYNC:
-		try {
-		    FileOutputStream ofstream = new FileOutputStream( "DISK" );
-		    ofstream.write( data );
-		    ofstream.close( );
-		} catch ( FileNotFoundException e ) {
-		    SysLib.cerr( e.toString( ) );
-		} catch ( IOException e ) {
-		    SysLib.cerr( e.toString( ) );
-		}
-		// SysLib.cerr( "threadOS: DISK synchronized\n" );
-		break;
+		checkpoint( request );
+		continue;
 	    }
-	    finishCommand( );
+	    finishRequest( request );
 	}
     }
 }
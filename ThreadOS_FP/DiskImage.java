@@ -0,0 +1,168 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+// Backing store of a Disk. A DiskImage holds the contents of every
+// block and persists them to a host file when the disk is synchronized.
+// The disk thread is the only caller of read and write. A sync runs in a
+// background writer instead, against a checkpoint: the set of blocks
+// dirty when the SYNC was served. A block of the checkpoint overwritten
+// before the writer reaches it has its old contents preserved first, so
+// the writer persists the image exactly as it was at the SYNC.
+public abstract class DiskImage {
+    // blocks gathered into one buffer, and one write, at most by a sync
+    private static final int maxRunBlocks = 4096;
+
+    protected final String fileName;
+    protected final int diskSize;
+
+    // blocks written since the last checkpoint
+    protected BitSet dirty;
+
+    // Blocks the host file may hold data for. The file is kept sparse: an
+    // all-zero block outside this set is never written, since a hole or
+    // the region past the end of the file reads back as zeros.
+    protected BitSet stored;
+
+    // blocks of the checkpoint not yet written, or null if there is no
+    // checkpoint, and the contents they had when it was taken
+    private BitSet frozen;
+    private HashMap<Integer, byte[]> preserved;
+
+    public DiskImage( String fileName, int diskSize ) {
+	this.fileName = fileName;
+	this.diskSize = diskSize;
+	dirty = new BitSet( diskSize );
+	stored = new BitSet( diskSize );
+	frozen = null;
+	preserved = null;
+    }
+
+    // copies block blockId into buffer[offset .. offset + Disk.blockSize)
+    public abstract void read( int blockId, byte buffer[], int offset );
+
+    // copies buffer[offset .. offset + Disk.blockSize) into block blockId;
+    // implementations call preserve( blockId ) first
+    public abstract void write( int blockId, byte buffer[], int offset );
+
+    // Writes the blocks of a checkpoint back to the host file and returns
+    // the number of bytes handed to the host. Runs in the background
+    // writer, while the disk thread goes on reading and writing.
+    public abstract long sync( BitSet blocks );
+
+    // Whether a write may overwrite a block of the checkpoint while the
+    // writer runs, its contents as of the checkpoint being preserved.
+    public boolean preservesCheckpoint( ) {
+	return true;
+    }
+
+    // Takes a checkpoint of the blocks written so far and returns them.
+    // The caller must have waited for the previous checkpoint's sync.
+    public synchronized BitSet checkpoint( ) {
+	frozen = ( BitSet )dirty.clone( );
+	preserved = new HashMap<Integer, byte[]>( );
+	dirty.clear( );
+	return ( BitSet )frozen.clone( );
+    }
+
+    // keeps the checkpointed contents of a block about to be overwritten
+    protected synchronized void preserve( int blockId ) {
+	if ( frozen != null && frozen.get( blockId )
+	     && preserved.containsKey( blockId ) == false ) {
+	    byte old[] = new byte[ Disk.blockSize ];
+	    read( blockId, old, 0 );
+	    preserved.put( blockId, old );
+	}
+    }
+
+    // copies block blockId as of the checkpoint into buffer
+    protected synchronized void readFrozen( int blockId, byte buffer[],
+					    int offset ) {
+	byte old[] = ( preserved == null ) ? null : preserved.get( blockId );
+	if ( old != null )
+	    System.arraycopy( old, 0, buffer, offset, Disk.blockSize );
+	else
+	    read( blockId, buffer, offset );
+    }
+
+    // the checkpointed blocks first .. end - 1 are on the host now
+    protected synchronized void release( int first, int end ) {
+	if ( frozen == null )
+	    return;
+	frozen.clear( first, end );
+	for ( int b = first; b < end; b++ )
+	    preserved.remove( b );
+	if ( frozen.isEmpty( ) ) {
+	    frozen = null;
+	    preserved = null;
+	}
+    }
+
+    // Writes the blocks of a checkpoint to channel, one positional write
+    // per run of adjacent blocks, leaving out zero blocks the file does
+    // not hold, then cuts off the trailing zero blocks.
+    protected long writeBlocks( FileChannel channel, BitSet blocks )
+	throws IOException {
+	long written = 0;
+	for ( int first = blocks.nextSetBit( 0 ); first >= 0;
+	      first = blocks.nextSetBit( first ) ) {
+	    int end = Math.min( Math.min( blocks.nextClearBit( first ),
+					  diskSize ), first + maxRunBlocks );
+	    byte run[] = new byte[ ( end - first ) * Disk.blockSize ];
+	    for ( int b = first; b < end; b++ )
+		readFrozen( b, run, ( b - first ) * Disk.blockSize );
+	    release( first, end );
+	    for ( int b = first; b < end; ) {
+		if ( needsWrite( b, run, ( b - first ) * Disk.blockSize )
+		     == false ) {
+		    b++;
+		    continue;
+		}
+		int e = b + 1;
+		while ( e < end
+			&& needsWrite( e, run, ( e - first ) * Disk.blockSize ) )
+		    e++;
+		ByteBuffer out = ByteBuffer.wrap( run, ( b - first )
+						  * Disk.blockSize,
+						  ( e - b ) * Disk.blockSize );
+		long position = ( long )first * Disk.blockSize;
+		while ( out.hasRemaining( ) )
+		    written += channel.write( out, position + out.position( ) );
+		b = e + 1;
+	    }
+	    first = end;
+	}
+	if ( channel.size( ) > storedBytes( ) )
+	    channel.truncate( storedBytes( ) );
+	return written;
+    }
+
+    // Called by sync for each block: returns false if the block can be
+    // skipped, being all zeros where the host file already reads as
+    // zeros, and records whether the file holds data for it from now on.
+    protected boolean needsWrite( int blockId, byte buffer[], int offset ) {
+	boolean zero = isZero( buffer, offset );
+	boolean write = !zero || stored.get( blockId );
+	stored.set( blockId, !zero );
+	return write;
+    }
+
+    // marks the blocks covered by the first fileBytes of the host file
+    protected void setStoredBytes( long fileBytes ) {
+	long blocks = ( fileBytes + Disk.blockSize - 1 ) / Disk.blockSize;
+	stored.set( 0, ( int )Math.min( blocks, diskSize ) );
+    }
+
+    // the length the host file needs: up to its last non-zero block
+    protected long storedBytes( ) {
+	return ( long )stored.length( ) * Disk.blockSize;
+    }
+
+    protected static boolean isZero( byte buffer[], int offset ) {
+	for ( int i = offset; i < offset + Disk.blockSize; i++ )
+	    if ( buffer[i] != 0 )
+		return false;
+	return true;
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.*;
+import java.util.*;
+
+// The timing of the simulated device. Disk asks its model how long each
+// command takes and sleeps for that long, so the file system can be
+// measured against a slow disk, a realistic one, a recorded one, or no
+// latency at all. Times are in microseconds.
+public abstract class DiskModel {
+    protected final int trackSize;	// blocks per track
+
+    protected DiskModel( int trackSize ) {
+	this.trackSize = trackSize;
+    }
+
+    public int getTrackSize( ) {
+	return trackSize;
+    }
+
+    // time to move the head from block from to block to and then transfer
+    // count blocks from there on
+    public abstract long serviceTime( int from, int to, int count );
+
+    // Builds a model from a boot option value:
+    //   zero               no latency
+    //   hdd                the original ThreadOS disk (the default)
+    //   rotational[:k=v,...] a drive with a seek curve and rotation; keys
+    //                      are rpm, track, minseek and maxseek (msec)
+    //   trace:file         replays service times recorded in file
+    // Any other name is reported and hdd used.
+    public static DiskModel forName( String spec, int diskSize ) {
+	String name = spec;
+	String arg = "";
+	if ( spec.indexOf( ':' ) >= 0 ) {
+	    name = spec.substring( 0, spec.indexOf( ':' ) );
+	    arg = spec.substring( spec.indexOf( ':' ) + 1 );
+	}
+	if ( name.equals( "zero" ) )
+	    return new ZeroLatency( );
+	if ( name.equals( "rotational" ) )
+	    return new Rotational( arg, diskSize );
+	if ( name.equals( "trace" ) ) {
+	    try {
+		return new Trace( arg );
+	    } catch ( IOException e ) {
+		SysLib.cerr( "threadOS: cannot read disk trace " + arg + " ("
+			     + e.toString( ) + "), using hdd\n" );
+	    }
+	}
+	else if ( name.equals( "hdd" ) == false )
+	    SysLib.cerr( "threadOS: unknown disk model " + spec
+			 + ", using hdd\n" );
+	return new Hdd( );
+    }
+
+    // for benchmarking the file system itself
+    static class ZeroLatency extends DiskModel {
+	ZeroLatency( ) {
+	    super( 10 );
+	}
+
+	public long serviceTime( int from, int to, int count ) {
+	    return 0;
+	}
+    }
+
+    // the fixed costs ThreadOS has always charged: a transfer time per
+    // block, or per command for a SYNC, plus a delay per track crossed
+    static class Hdd extends DiskModel {
+	private final int transferTime = 20;
+	private final int delayPerTrack = 1;
+
+	Hdd( ) {
+	    super( 10 );
+	}
+
+	public long serviceTime( int from, int to, int count ) {
+	    return 1000L * ( transferTime * Math.max( count, 1 ) + delayPerTrack
+			     * Math.abs( to/trackSize - from/trackSize ) );
+	}
+    }
+
+    // A spinning drive. Seeking d tracks takes minSeek + (maxSeek -
+    // minSeek) * sqrt(d / tracks), the usual shape of a measured seek
+    // curve. The head then waits for the target block to rotate under it;
+    // the platter angle follows the wall clock, since Disk really sleeps.
+    // An option that is not a number, or is out of range (rpm and track
+    // must be positive, seek times not negative), keeps its default.
+    static class Rotational extends DiskModel {
+	private int rpm = 7200;
+	private double minSeek = 1.0;
+	private double maxSeek = 15.0;
+	private final int tracks;
+	private final long revolution;	// microseconds per turn
+
+	Rotational( String args, int diskSize ) {
+	    super( option( args, "track", 64 ) );
+	    rpm = option( args, "rpm", rpm );
+	    minSeek = option( args, "minseek", minSeek );
+	    maxSeek = Math.max( option( args, "maxseek", maxSeek ), minSeek );
+	    tracks = Math.max( diskSize / trackSize, 1 );
+	    revolution = 60L * 1000 * 1000 / rpm;
+	}
+
+	public long serviceTime( int from, int to, int count ) {
+	    int distance = Math.abs( to/trackSize - from/trackSize );
+	    long seek = ( distance == 0 ) ? 0 : ( long )( 1000 *
+		( minSeek + ( maxSeek - minSeek )
+		  * Math.sqrt( ( double )distance / tracks ) ) );
+	    long perBlock = revolution / trackSize;
+	    long angle = ( System.nanoTime( ) / 1000 + seek ) % revolution;
+	    long target = ( to % trackSize ) * perBlock;
+	    long rotation = ( target - angle + revolution ) % revolution;
+	    return seek + rotation + perBlock * count;
+	}
+
+	private static int option( String args, String key, int value ) {
+	    String v = lookup( args, key );
+	    if ( v == null )
+		return value;
+	    try {
+		int n = Integer.parseInt( v );
+		if ( n > 0 )
+		    return n;
+	    } catch ( NumberFormatException e ) {
+	    }
+	    rejected( key, v, "" + value );
+	    return value;
+	}
+
+	private static double option( String args, String key, double value ) {
+	    String v = lookup( args, key );
+	    if ( v == null )
+		return value;
+	    try {
+		double d = Double.parseDouble( v );
+		if ( d >= 0 )
+		    return d;
+	    } catch ( NumberFormatException e ) {
+	    }
+	    rejected( key, v, "" + value );
+	    return value;
+	}
+
+	private static void rejected( String key, String v, String value ) {
+	    SysLib.cerr( "threadOS: bad rotational option " + key + "=" + v
+			 + ", using " + value + "\n" );
+	}
+
+	private static String lookup( String args, String key ) {
+	    StringTokenizer token = new StringTokenizer( args, "," );
+	    while ( token.hasMoreTokens( ) ) {
+		String pair = token.nextToken( );
+		if ( pair.startsWith( key + "=" ) )
+		    return pair.substring( key.length( ) + 1 );
+	    }
+	    return null;
+	}
+    }
+
+    // Replays service times measured on a real device. Each line of the
+    // trace holds one time in microseconds; lines starting with '#' are
+    // comments, and lines that are not a time are reported and skipped.
+    // The trace repeats once it runs out.
+    static class Trace extends DiskModel {
+	private long times[];
+	private int next;
+
+	Trace( String fileName ) throws IOException {
+	    super( 10 );
+	    Vector<Long> recorded = new Vector<Long>( );
+	    BufferedReader in = new BufferedReader( new FileReader( fileName ) );
+	    String line;
+	    for ( int n = 1; ( line = in.readLine( ) ) != null; n++ ) {
+		line = line.trim( );
+		if ( line.length( ) == 0 || line.charAt( 0 ) == '#' )
+		    continue;
+		try {
+		    long time = Long.parseLong( line );
+		    if ( time >= 0 ) {
+			recorded.addElement( time );
+			continue;
+		    }
+		} catch ( NumberFormatException e ) {
+		}
+		SysLib.cerr( "threadOS: " + fileName + ":" + n
+			     + ": not a service time, skipped\n" );
+	    }
+	    in.close( );
+	    if ( recorded.size( ) == 0 )
+		throw new IOException( "empty trace" );
+	    times = new long[ recorded.size( ) ];
+	    for ( int i = 0; i < times.length; i++ )
+		times[i] = recorded.elementAt( i );
+	    next = 0;
+	}
+
+	public long serviceTime( int from, int to, int count ) {
+	    long time = times[next];
+	    next = ( next + 1 ) % times.length;
+	    return time;
+	}
+    }
+}
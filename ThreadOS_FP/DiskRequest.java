@@ -0,0 +1,54 @@
+// A command waiting in (or being served by) the Disk's pending queue.
+// The thread that issued it sleeps in waitFinish( ) until the disk thread
+// has completed it, or until the disk has rejected it.
+public class DiskRequest {
+    public final int command;	// Disk.READ, Disk.WRITE or Disk.SYNC
+    public final int blockId;
+    public final int count;	// consecutive blocks from blockId on
+    public final byte buffer[];
+    private boolean finished;
+    private boolean failed;
+
+    public DiskRequest( int command, int blockId, int count,
+			byte buffer[] ) {
+	this.command = command;
+	this.blockId = blockId;
+	this.count = count;
+	this.buffer = buffer;
+	finished = false;
+	failed = false;
+    }
+
+    // true if this request must stay behind an earlier request r:
+    // SYNC is a barrier, and accesses to overlapping blocks keep their
+    // order unless both of them are reads
+    public boolean dependsOn( DiskRequest r ) {
+	if ( command == Disk.SYNC || r.command == Disk.SYNC )
+	    return true;
+	return blockId < r.blockId + r.count && r.blockId < blockId + count
+	    && ( command == Disk.WRITE || r.command == Disk.WRITE );
+    }
+
+    public synchronized void finish( ) {
+	finished = true;
+	notifyAll( );
+    }
+
+    // completes the request without serving it
+    public synchronized void fail( ) {
+	failed = true;
+	finish( );
+    }
+
+    // returns false if the disk rejected the request
+    public synchronized boolean waitFinish( ) {
+	while ( finished == false ) {
+	    try {
+		wait( );
+	    } catch ( InterruptedException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+	return failed == false;
+    }
+}
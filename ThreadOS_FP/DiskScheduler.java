@@ -0,0 +1,119 @@
+import java.util.*;
+
+// Chooses which pending request the Disk serves next. Disk passes only
+// the requests that are free to run (see DiskRequest.dependsOn), in
+// arrival order, together with the track the head is currently on.
+public abstract class DiskScheduler {
+    protected final int trackSize;
+
+    protected DiskScheduler( int trackSize ) {
+	this.trackSize = trackSize;
+    }
+
+    // returns the index in ready of the request to serve next
+    public abstract int next( Vector<DiskRequest> ready, int headTrack );
+
+    protected int track( DiskRequest r ) {
+	return r.blockId / trackSize;
+    }
+
+    // "fifo", "sstf", "scan" or "clook"; any other name is reported and
+    // served as fifo
+    public static DiskScheduler forName( String name, int trackSize ) {
+	if ( name.equals( "sstf" ) )
+	    return new Sstf( trackSize );
+	if ( name.equals( "scan" ) )
+	    return new Scan( trackSize );
+	if ( name.equals( "clook" ) )
+	    return new CLook( trackSize );
+	if ( name.equals( "fifo" ) == false )
+	    SysLib.cerr( "threadOS: unknown disk scheduler " + name
+			 + ", using fifo\n" );
+	return new Fifo( trackSize );
+    }
+
+    // arrival order, as the single-command disk used to behave
+    static class Fifo extends DiskScheduler {
+	Fifo( int trackSize ) {
+	    super( trackSize );
+	}
+
+	public int next( Vector<DiskRequest> ready, int headTrack ) {
+	    return 0;
+	}
+    }
+
+    // shortest seek first; ties go to the older request
+    static class Sstf extends DiskScheduler {
+	Sstf( int trackSize ) {
+	    super( trackSize );
+	}
+
+	public int next( Vector<DiskRequest> ready, int headTrack ) {
+	    int best = 0;
+	    for ( int i = 1; i < ready.size( ); i++ )
+		if ( Math.abs( track( ready.elementAt( i ) ) - headTrack )
+		     < Math.abs( track( ready.elementAt( best ) ) - headTrack ) )
+		    best = i;
+	    return best;
+	}
+    }
+
+    // the elevator: keep moving in one direction and turn around when no
+    // request is left ahead of the head (it turns at the last request
+    // rather than at the edge of the disk)
+    static class Scan extends DiskScheduler {
+	private boolean up = true;
+
+	Scan( int trackSize ) {
+	    super( trackSize );
+	}
+
+	public int next( Vector<DiskRequest> ready, int headTrack ) {
+	    int best = nearestAhead( ready, headTrack );
+	    if ( best < 0 ) {
+		up = !up;
+		best = nearestAhead( ready, headTrack );
+	    }
+	    return best;
+	}
+
+	private int nearestAhead( Vector<DiskRequest> ready, int headTrack ) {
+	    int best = -1;
+	    for ( int i = 0; i < ready.size( ); i++ ) {
+		int distance = ahead( ready.elementAt( i ), headTrack );
+		if ( distance >= 0 && ( best < 0 || distance
+					< ahead( ready.elementAt( best ), headTrack ) ) )
+		    best = i;
+	    }
+	    return best;
+	}
+
+	// how far r lies ahead of the head in the current direction
+	private int ahead( DiskRequest r, int headTrack ) {
+	    return up ? track( r ) - headTrack : headTrack - track( r );
+	}
+    }
+
+    // circular LOOK: serve upwards only, then jump back to the lowest
+    // pending track, which gives every track the same expected wait
+    static class CLook extends DiskScheduler {
+	CLook( int trackSize ) {
+	    super( trackSize );
+	}
+
+	public int next( Vector<DiskRequest> ready, int headTrack ) {
+	    int ahead = -1;
+	    int lowest = 0;
+	    for ( int i = 0; i < ready.size( ); i++ ) {
+		int t = track( ready.elementAt( i ) );
+		if ( t >= headTrack && ( ahead < 0
+					 || t < track( ready.elementAt( ahead ) ) ) )
+		    ahead = i;
+		if ( t < track( ready.elementAt( lowest ) ) )
+		    lowest = i;
+	    }
+	    return ( ahead >= 0 ) ? ahead : lowest;
+	}
+    }
+}
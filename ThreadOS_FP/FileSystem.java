@@ -18,6 +18,15 @@ public class FileSystem{
 	private Directory directory; //directory
 	private FileTable fileTable; //filetable
 
+	// most blocks taken from the superblock at once
+	private final static int maxRun = 64;
+	// blocks reserved for an open file at once, where the disk has room
+	private final static int window = 16;
+	// one lock per inode number, held while a file's blocks change; each
+	// open of a file has its own entry and Inode, so neither of those
+	// locks keeps two entries of one file apart
+	private Object[] fileLocks;
+
 	/**
 	 * constructor
 	 * creates a file system object with int parameter which
@@ -25,11 +34,31 @@ public class FileSystem{
 	 * sets up directory, filetable and filetableentry as well
 	 */
 	public FileSystem(int diskBlocks){
+		this(diskBlocks, SuperBlock.FREE_BITMAP);
+	}
+
+	/**
+	 * constructor
+	 * as above, tracking free blocks the given way
+	 * @param int allocator SuperBlock.FREE_LIST or SuperBlock.FREE_BITMAP
+	 */
+	public FileSystem(int diskBlocks, int allocator){
+		this(diskBlocks, allocator, 0);
+	}
+
+	/**
+	 * constructor
+	 * as above, formatting a bitmap disk into cylinder groups
+	 * @param int allocator SuperBlock.FREE_LIST or SuperBlock.FREE_BITMAP
+	 * @param int groupBlocks blocks per cylinder group, 0 for none
+	 */
+	public FileSystem(int diskBlocks, int allocator, int groupBlocks){
 		//create superblock and format disk with 64 inodes in default
-		superBlock = new SuperBlock(diskBlocks);
+		superBlock = new SuperBlock(diskBlocks, allocator, groupBlocks);
 
 		//create directory and register "/" to entry 0
 		directory = new Directory(superBlock.totalInodes);
+		fileLocks = newFileLocks(superBlock.totalInodes);
 
 		//file table is created, and store directory in the file table
 		fileTable = new FileTable(directory);
@@ -57,6 +86,15 @@ public class FileSystem{
 		//write the data to my entry
 		write(dEntry, data);
 		close(dEntry); //close
+		// blocks reserved for open files go back first, so that the
+		// superblock never saves them as used
+		Vector<FileTableEntry> entries = fileTable.entries();
+		for (int i = 0; i < entries.size(); i++) {
+			FileTableEntry ftEnt = entries.elementAt(i);
+			synchronized (ftEnt) {
+				releaseBlocks(ftEnt);
+			}
+		}
 		superBlock.sync(); //sync super
 	}
 
@@ -71,6 +109,7 @@ public class FileSystem{
 			//essentially repeat constructor
 			superBlock.format(files);
 			directory = new Directory(superBlock.totalInodes);
+			fileLocks = newFileLocks(superBlock.totalInodes);
 			fileTable = new FileTable(directory);
 			return true;
 		}
@@ -98,10 +137,12 @@ public class FileSystem{
 			return null;
 		}
 		synchronized (ftEnt) {
-			// if writeonly we need to write from scratch
-			if (ftEnt.mode == 0 && !deallocAllBlocks(ftEnt)) {
-				fileTable.ffree(ftEnt);
-				return null;
+			synchronized (fileLocks[ftEnt.iNumber]) {
+				// if writeonly we need to write from scratch
+				if (ftEnt.mode == 0 && !deallocAllBlocks(ftEnt)) {
+					fileTable.ffree(ftEnt);
+					return null;
+				}
 			}
 		}
 		//if passed checks simply return ftentry
@@ -122,10 +163,15 @@ public class FileSystem{
 				return false;
 			}
 
+			// blocks reserved for writes and not used go back
+			releaseBlocks(ftEnt);
+
 			//if set to delete and no other threads using
 			if (iNode.flag == 4 && ftEnt.count == 0) {
 				// deallocate file table entry
-				deallocAllBlocks(ftEnt);
+				synchronized (fileLocks[ftEnt.iNumber]) {
+					deallocAllBlocks(ftEnt);
+				}
 				if (!directory.ifree(ftEnt.iNumber)){
 					return false;
 				}
@@ -160,7 +206,7 @@ public class FileSystem{
 	 * returns either -1 for failed read, or index of where read ended
 	 */
 	public int read(FileTableEntry ftEnt, byte[] buffer){
-		int seekPtr, block, blockCheck, availableBytes, remaining, read, index;
+		int seekPtr, block, blockCheck, availableBytes, remaining, read, index, run;
 		Inode iNode = ftEnt.inode; //get inode
 
 		// only allowed read access for read.... append and write can't continue
@@ -176,7 +222,6 @@ public class FileSystem{
 			// set my seekPtr to the ftentry ptr
 			seekPtr = ftEnt.seekPtr;
 			index = 0;
-			byte[] data = new byte[Disk.blockSize]; //allocate new block for reading
 
 			//loop until we have gone through and read the entire buffer
 			while (index < buffer.length) {
@@ -189,7 +234,7 @@ public class FileSystem{
 				// how many should we read...
 				read = Math.min(availableBytes, remaining);
 				//get the proper block
-				block = iNode.findTargetBlock(blockCheck);
+				block = targetBlock(iNode, seekPtr);
 				// block must exist
 				if(block == -1) {
 					return -1;
@@ -201,10 +246,20 @@ public class FileSystem{
 					return index;
 				}
 
-				// read block from disk to data
-				SysLib.rawread(block, data);
-				//copy to buffer
-				System.arraycopy(data, blockCheck, buffer, index, read);
+				// whole blocks that also sit next to each other on disk
+				// are read with one vectored disk command
+				run = contiguousRun(iNode, seekPtr, block, remaining);
+				if (run > 1) {
+					byte[] runData = new byte[run * Disk.blockSize];
+					SysLib.creadv(block, runData);
+					System.arraycopy(runData, 0, buffer, index, runData.length);
+					read = runData.length;
+				}
+				else {
+					// copy just the bytes wanted from the cached block
+					// straight into buffer
+					SysLib.cread(block, blockCheck, buffer, index, read);
+				}
 				//increase both index and seekptr
 				index += read;
 				seekPtr += read;
@@ -217,15 +272,14 @@ public class FileSystem{
 	}
 
 	/**
-	 * write to file
+	 * write to file. Writes to different files run at the same time;
+	 * writes to one file, through any entry, take turns under the
+	 * file's lock.
 	 * @param FTE ftEntry to write to
 	 * @param byte[] buffer that will be written to FTE
 	 * return index of where write left off
 	 */
-	public synchronized int write(FileTableEntry ftEnt, byte[] buffer){
-		int seekPtr, blockCheck, remaining, availableBytes, write, index;
-		Inode iNode = ftEnt.inode;
-		short block;
+	public int write(FileTableEntry ftEnt, byte[] buffer){
 		//check to make sure the FileTableEntry isn't null
 		if(ftEnt == null){
 			return -1;
@@ -234,12 +288,32 @@ public class FileSystem{
 		if (ftEnt.mode == 3){
 			return -1;
 		}
+		Inode iNode = ftEnt.inode;
 		// iNode cannot be null
 		if(null == iNode){
 			return -1;
 		}
+		synchronized (ftEnt) {
+			synchronized (fileLocks[ftEnt.iNumber]) {
+				return write(ftEnt, iNode, buffer);
+			}
+		}
+	}
+
+	/**
+	 * write to file, holding the locks of the entry and the file
+	 * @param FTE ftEntry to write to
+	 * @param Inode iNode of the file
+	 * @param byte[] buffer that will be written to FTE
+	 * return index of where write left off
+	 */
+	private int write(FileTableEntry ftEnt, Inode iNode, byte[] buffer){
+		int seekPtr, blockCheck, remaining, availableBytes, write, index;
+		// a run of whole blocks, consecutive on disk, not yet written
+		int runBlock = -1, runCount = 0, runIndex = 0;
+		int block;
 		// make sure iNode is free
-		else if (iNode.flag == 2 || iNode.flag == 3 || iNode.flag == 4){
+		if (iNode.flag == 2 || iNode.flag == 3 || iNode.flag == 4){
 			return -1;
 		}
 
@@ -262,17 +336,11 @@ public class FileSystem{
 			//how much more to write
 			write = Math.min(availableBytes, remaining);
 			//get proper block
-
-			/**
-			 * THIS IS WHERE THE BUG OCCURS. Should be sending seekPtr however causes
-			 * invalid read blocks amongst tests. Left as is to show that only a few tests
-			 * fail due to the bug
-			 */
-			block = iNode.findTargetBlock(blockCheck);
+			block = targetBlock(iNode, seekPtr);
 			// get next block from iNode
 			if(block == -1) {
 				// if ERROR, file is out of memory, so get a new block
-				block = superBlock.getFreeBlock();
+				block = allocBlock(ftEnt, seekPtr, buffer.length - index);
 				if(block == -1) {
 					iNode.flag = 4;
 					break;
@@ -287,7 +355,7 @@ public class FileSystem{
 						break;
 					}
 					// index block set, get a new block
-					block = superBlock.getFreeBlock();
+					block = allocBlock(ftEnt, seekPtr, buffer.length - index);
 					if(block == -1) {
 						iNode.flag = 4;
 						break;
@@ -306,15 +374,35 @@ public class FileSystem{
 				break;
 			}
 
-			//read the block to data
-			SysLib.rawread(block, data);
-
-			// copy data to buffer
-			// source, source position, destination, destination position,
-			// length to copy
-			System.arraycopy(buffer, index, data, blockCheck, write);
-			// write data to disk
-			SysLib.rawwrite(block, data);
+			if (write == Disk.blockSize) {
+				// a whole block needs no read first; collect it into the
+				// run so that consecutive blocks go out in one command
+				if (runCount > 0 && block != runBlock + runCount) {
+					writeRun(runBlock, buffer, runIndex, runCount);
+					runCount = 0;
+				}
+				if (runCount == 0) {
+					runBlock = block;
+					runIndex = index;
+				}
+				runCount++;
+			}
+			else {
+				// the pending run goes first, as it may hold this block
+				if (runCount > 0) {
+					writeRun(runBlock, buffer, runIndex, runCount);
+					runCount = 0;
+				}
+				//read the block to data
+				SysLib.cread(block, data);
+
+				// copy data to buffer
+				// source, source position, destination, destination position,
+				// length to copy
+				System.arraycopy(buffer, index, data, blockCheck, write);
+				// write data to disk
+				SysLib.cwrite(block, data);
+			}
 
 			index += write;
 			seekPtr += write;
@@ -333,54 +421,232 @@ public class FileSystem{
 			// save iNode to disk
 			iNode.toDisk(ftEnt.iNumber);
 		}
+		if (runCount > 0) {
+			writeRun(runBlock, buffer, runIndex, runCount);
+		}
 
 		return index;
 	}
 
+	/**
+	 * make the file locks for a file system of inodes files
+	 * @param int inodes number of inodes
+	 * return one lock per inode number
+	 */
+	private static Object[] newFileLocks(int inodes){
+		Object[] locks = new Object[inodes];
+		for (int i = 0; i < inodes; i++) {
+			locks[i] = new Object();
+		}
+		return locks;
+	}
+
+	/**
+	 * get a free block for file offset seekPtr, preferably the block
+	 * right after the file's previous one, or for the file's first
+	 * block, one in its inode's cylinder group. Blocks come from the
+	 * entry's reservation window, which is refilled from the superblock
+	 * a run at a time, as many as the rest of the write needs, grown to
+	 * window blocks where the disk has room. Only the refill takes the
+	 * superblock's lock, and the window stays with the entry until
+	 * close, so files written side by side each stay consecutive.
+	 * @param FileTableEntry ftEnt of the file
+	 * @param int seekPtr position in the file
+	 * @param int remaining bytes left to write from seekPtr on
+	 * return block number, or -1 if the disk is full
+	 */
+	private int allocBlock(FileTableEntry ftEnt, int seekPtr, int remaining){
+		Inode iNode = ftEnt.inode;
+		if (ftEnt.reservedNext == ftEnt.reservedCount) {
+			int goal = -1;
+			if (seekPtr >= Disk.blockSize) {
+				int previous = targetBlock(iNode, seekPtr - Disk.blockSize);
+				if (previous != -1) {
+					goal = previous + 1;
+				}
+			}
+			if (goal == -1) {
+				goal = superBlock.groupGoal(ftEnt.iNumber);
+			}
+			// blocks the write still touches, and the index block if it
+			// will need one
+			int count = (seekPtr % Disk.blockSize + remaining
+					+ Disk.blockSize - 1) / Disk.blockSize;
+			if (iNode.indirect == -1 && seekPtr + remaining
+					> iNode.direct.length * Disk.blockSize) {
+				count++;
+			}
+			if (ftEnt.reserved == null) {
+				ftEnt.reserved = new int[maxRun];
+			}
+			count = Math.min(count, maxRun);
+			ftEnt.reservedCount = superBlock.getFreeBlocks(goal,
+					ftEnt.reserved, count, Math.max(count, window));
+			ftEnt.reservedNext = 0;
+			if (ftEnt.reservedCount == 0) {
+				return -1;
+			}
+		}
+		return ftEnt.reserved[ftEnt.reservedNext++];
+	}
+
+	/**
+	 * give the blocks reserved for an entry but not used back to the
+	 * superblock
+	 * @param FileTableEntry ftEnt of the file
+	 */
+	private void releaseBlocks(FileTableEntry ftEnt){
+		while (ftEnt.reservedNext < ftEnt.reservedCount) {
+			superBlock.returnBlock(ftEnt.reserved[ftEnt.reservedNext++]);
+		}
+		ftEnt.reservedNext = ftEnt.reservedCount = 0;
+	}
+
+	/**
+	 * find the disk block holding a file position
+	 * @param Inode iNode of the file
+	 * @param int seekPtr position in the file
+	 * return block number, or -1 if none is allocated
+	 */
+	private int targetBlock(Inode iNode, int seekPtr){
+		return iNode.findTargetBlock(seekPtr);
+	}
+
+	/**
+	 * count the whole blocks from seekPtr on that are stored one after
+	 * another on disk, starting with block
+	 * @param Inode iNode of the file
+	 * @param int seekPtr position in the file
+	 * @param int block disk block holding seekPtr
+	 * @param int length bytes the run may cover
+	 * return number of blocks in the run, 0 if seekPtr is inside a block
+	 */
+	private int contiguousRun(Inode iNode, int seekPtr, int block, int length){
+		int run = 0;
+		if (seekPtr % Disk.blockSize != 0) {
+			return 0;
+		}
+		while ((run + 1) * Disk.blockSize <= length
+				&& block + run < superBlock.totalBlocks
+				&& targetBlock(iNode, seekPtr + run * Disk.blockSize) == block + run) {
+			run++;
+		}
+		return run;
+	}
+
+	/**
+	 * write whole blocks from a user buffer to consecutive disk blocks
+	 * @param int block first disk block
+	 * @param byte[] buffer user data
+	 * @param int index where the data starts in buffer
+	 * @param int count number of blocks
+	 */
+	private void writeRun(int block, byte[] buffer, int index, int count){
+		byte[] runData = new byte[count * Disk.blockSize];
+		System.arraycopy(buffer, index, runData, 0, runData.length);
+		if (count == 1) {
+			SysLib.cwrite(block, runData);
+		}
+		else {
+			SysLib.cwritev(block, runData);
+		}
+	}
+
 	/**
 	 * deallocate the blocks in a FTE entry
 	 * @param FTE ftEntry
 	 * return true upon success, false if fail
 	 */
 	private boolean deallocAllBlocks(FileTableEntry ftEnt){
-		Inode iNode = ftEnt.inode; //get inode
-
-		byte[] data = new byte[Disk.blockSize];
-		SysLib.rawread(iNode.indirect, data); //read
-
 		int block;
 
 		// check for bad data
-		if (null == ftEnt || null == iNode || iNode.count > 1){
+		if (null == ftEnt || null == ftEnt.inode || ftEnt.inode.count > 1){
 			return false;
 		}
+		Inode iNode = ftEnt.inode; //get inode
 
 		// deallocate direct blocks
-		for(int i = 0; i < iNode.length; i+= Disk.blockSize){
-			block = iNode.findTargetBlock(i);
+		for(int i = 0; i < iNode.direct.length; i++){
+			block = iNode.direct[i];
 			if(block == -1){
 				continue;
 			}
 			// deallocate
 			superBlock.returnBlock(block);
-			iNode.setBlock(block, (short) -1);
+			iNode.direct[i] = -1;
 		}
 
-		// deallocate indirect blocks
-		for (int j = 0; j < Disk.blockSize/2; j += 2) {
-			block = SysLib.bytes2short(data, j);
-			// skip unallocated block
-			if(block == -1){
-				continue;
+		// deallocate indirect blocks, then the index block itself
+		if (iNode.indirect != -1) {
+			byte[] data = new byte[Disk.blockSize];
+			SysLib.cread(iNode.indirect, data); //read
+			for (int j = 0; j < Inode.pointersPerBlock(); j++) {
+				block = Inode.getPointer(data, j);
+				// skip unallocated block
+				if(block == -1){
+					continue;
+				}
+				superBlock.returnBlock(block);
 			}
-			superBlock.returnBlock(block);
+			superBlock.returnBlock(iNode.indirect);
+			iNode.indirect = -1;
 		}
+		iNode.length = 0;
 		// write iNode to disk
 		iNode.toDisk(ftEnt.iNumber);
 		return true;
 	}
 
 
+	/**
+	 * pin or unpin every block of a file in the cache: its inode's block,
+	 * its data blocks and its index block. Blocks the file gains later
+	 * are not pinned.
+	 * @param FTE ftEntry
+	 * @param boolean on true to pin, false to unpin
+	 * return true upon success; a pin that fails undoes the pins it made
+	 */
+	public boolean pin(FileTableEntry ftEnt, boolean on){
+		if (null == ftEnt || null == ftEnt.inode){
+			return false;
+		}
+		Inode iNode = ftEnt.inode;
+		Vector<Integer> blocks = new Vector<Integer>();
+		blocks.add(iNode.getBlockId(ftEnt.iNumber));
+		for (int i = 0; i < iNode.direct.length; i++){
+			if (iNode.direct[i] != -1){
+				blocks.add(iNode.direct[i]);
+			}
+		}
+		if (iNode.indirect != -1){
+			blocks.add(iNode.indirect);
+			byte[] data = new byte[Disk.blockSize];
+			SysLib.cread(iNode.indirect, data);
+			for (int j = 0; j < Inode.pointersPerBlock(); j++){
+				if (Inode.getPointer(data, j) != -1){
+					blocks.add(Inode.getPointer(data, j));
+				}
+			}
+		}
+
+		boolean ok = true;
+		for (int k = 0; k < blocks.size(); k++){
+			int block = blocks.elementAt(k);
+			if (!on){
+				ok &= SysLib.cunpin(block) == Kernel.OK;
+			}
+			else if (SysLib.cpin(block) != Kernel.OK){
+				// over the pin limit: take back what this call pinned
+				for (int u = 0; u < k; u++){
+					SysLib.cunpin(blocks.elementAt(u));
+				}
+				return false;
+			}
+		}
+		return ok;
+	}
+
 	/**
 	 * delete a file
 	 * @param string filename
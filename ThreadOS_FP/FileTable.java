@@ -11,7 +11,7 @@ import java.util.Vector;
 public class FileTable
 {
 	// The actual entity of this file table
-	private Vector table;
+	private Vector<FileTableEntry> table;
 	// This is the root directory
 	private Directory dir;
 	// FIleTable constructor
@@ -121,6 +121,11 @@ public class FileTable
 		// The file table entry was successfuly found and freed.
 		return true;
 	}
+	// The following method returns a copy of the open entries.
+	public synchronized Vector<FileTableEntry> entries( )
+	{
+		return new Vector<FileTableEntry>(table);
+	}
 	// The following method checks to see if the table is empty.
 	public synchronized boolean fempty( )
 	{
@@ -11,6 +11,9 @@ public class FileTableEntry {  // Each table entry should have
     public final short iNumber;//    this inode number
     public int count;          //    a count to maintain #threads sharing this
     public final int mode;  //    "r", "w", "w+", or "a"
+    int reserved[];            //    free blocks reserved for writes
+    int reservedNext;          //    the next reserved block to use
+    int reservedCount;         //    reserved blocks taken, used or not
 
 
     FileTableEntry ( Inode i, short inumber, String m ) {
@@ -0,0 +1,141 @@
+import java.util.Arrays;
+
+// A bitmap of free blocks, one bit per block, set while the block is in
+// use. A map tracks either the whole disk or, with cylinder groups, the
+// blocks first .. first + totalBlocks - 1 of one group. The map is kept
+// in memory and lives on the disk in blocksFor(totalBlocks) consecutive
+// blocks starting at start; only the map blocks changed since the last
+// sync() are written back.
+public class FreeMap
+{
+	// Blocks tracked by one map block.
+	public final static int bitsPerBlock = Disk.blockSize * 8;
+	// The first block tracked.
+	public final int first;
+	// The number of blocks tracked.
+	private int totalBlocks;
+	// The first block holding the map.
+	public int start;
+	// One bit per disk block; a set bit is a block in use.
+	private byte[] bits;
+	// Map blocks changed since the last sync.
+	private boolean[] dirty;
+
+	// The number of blocks holding the map of a disk of totalBlocks.
+	public static int blocksFor(int totalBlocks)
+	{
+		return (totalBlocks + bitsPerBlock - 1) / bitsPerBlock;
+	}
+
+	// A map of the whole disk with every block in use, to be stored at
+	// block start.
+	public FreeMap(int totalBlocks, int start)
+	{
+		this(0, totalBlocks, start);
+	}
+
+	// A map of totalBlocks blocks from first on, every one in use.
+	public FreeMap(int first, int totalBlocks, int start)
+	{
+		this.first = first;
+		this.totalBlocks = totalBlocks;
+		this.start = start;
+		bits = new byte[blocksFor(totalBlocks) * Disk.blockSize];
+		dirty = new boolean[blocksFor(totalBlocks)];
+		Arrays.fill(bits, (byte) 0xff);
+		Arrays.fill(dirty, true);
+	}
+
+	// Reads the map stored at block start.
+	public static FreeMap load(int first, int totalBlocks, int start)
+	{
+		FreeMap map = new FreeMap(first, totalBlocks, start);
+		SysLib.creadv(start, map.bits);
+		Arrays.fill(map.dirty, false);
+		return map;
+	}
+
+	// The block past the last one tracked.
+	public int end()
+	{
+		return first + totalBlocks;
+	}
+
+	public boolean isFree(int block)
+	{
+		block -= first;
+		return (bits[block >> 3] & (1 << (block & 7))) == 0;
+	}
+
+	public void setUsed(int block)
+	{
+		block -= first;
+		bits[block >> 3] |= (byte) (1 << (block & 7));
+		dirty[block / bitsPerBlock] = true;
+	}
+
+	public void setFree(int block)
+	{
+		block -= first;
+		bits[block >> 3] &= (byte) ~(1 << (block & 7));
+		dirty[block / bitsPerBlock] = true;
+	}
+
+	// The first free block at or after from, or -1 if there is none.
+	// Eight blocks in use are skipped at a time.
+	public int findFree(int from)
+	{
+		for (int block = Math.max(from - first, 0); block < totalBlocks;
+			block++)
+		{
+			if ((block & 7) == 0 && bits[block >> 3] == (byte) 0xff)
+			{
+				block += 7;
+				continue;
+			}
+			if (isFree(first + block))
+			{
+				return first + block;
+			}
+		}
+		return -1;
+	}
+
+	// The first block at or after from that starts length free blocks
+	// in a row, or -1 if there is no such run.
+	public int findRun(int from, int length)
+	{
+		int run = 0;
+		for (int block = Math.max(from, first); block < end(); block++)
+		{
+			if (isFree(block))
+			{
+				if (++run == length)
+				{
+					return block - length + 1;
+				}
+			}
+			else
+			{
+				run = 0;
+			}
+		}
+		return -1;
+	}
+
+	// Writes the changed map blocks through the cache.
+	public void sync()
+	{
+		for (int i = 0; i < dirty.length; i++)
+		{
+			if (dirty[i])
+			{
+				byte[] data = new byte[Disk.blockSize];
+				System.arraycopy(bits, i * Disk.blockSize, data, 0,
+						Disk.blockSize);
+				SysLib.cwrite(start + i, data);
+				dirty[i] = false;
+			}
+		}
+	}
+}// End of FreeMap.java
@@ -0,0 +1,69 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+// The original ThreadOS disk image: the whole host file is read into a
+// heap array at boot. A sync writes back only the blocks written since
+// the previous sync, one positional write per run of adjacent blocks.
+// All-zero blocks are left out as holes, and trailing ones are cut off.
+// A Java array holds less than 2GB, which limits the disk to about four
+// million blocks.
+public class HeapDiskImage extends DiskImage {
+    private static final long maxBytes = Integer.MAX_VALUE - 8;
+    private byte data[];
+    private FileChannel channel; // opened on the first sync
+
+    public HeapDiskImage( String fileName, int diskSize )
+	throws IOException {
+	super( fileName, diskSize );
+	long imageSize = ( long )diskSize * Disk.blockSize;
+	if ( imageSize > maxBytes )
+	    throw new IOException( diskSize + " blocks do not fit a heap "
+				   + "image of at most "
+				   + maxBytes / Disk.blockSize + " blocks" );
+	data = new byte[ ( int )imageSize ];
+	try {
+	    FileInputStream ifstream = new FileInputStream( fileName );
+	    int readableSize = ( ifstream.available( ) < data.length ) ?
+		ifstream.available( ) : data.length;
+	    ifstream.read( data, 0, readableSize );
+	    ifstream.close( );
+	    setStoredBytes( readableSize );
+	} catch ( FileNotFoundException e ) {
+	    SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    public void read( int blockId, byte buffer[], int offset ) {
+	System.arraycopy( data, offset( blockId ),
+			  buffer, offset,
+			  Disk.blockSize );
+    }
+
+    public synchronized void write( int blockId, byte buffer[], int offset ) {
+	preserve( blockId );
+	System.arraycopy( buffer, offset,
+			  data, offset( blockId ),
+			  Disk.blockSize );
+	dirty.set( blockId );
+    }
+
+    // where block blockId starts in data
+    private static int offset( int blockId ) {
+	return ( int )( ( long )blockId * Disk.blockSize );
+    }
+
+    public long sync( BitSet blocks ) {
+	try {
+	    if ( channel == null )
+		channel = new RandomAccessFile( fileName, "rw" ).getChannel( );
+	    return writeBlocks( channel, blocks );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+	return 0;
+    }
+}
@@ -1 +1 @@
-//************************************************************// Created by: Elliott Shanks, Will Tanna, and Himanshu Mehru// CSS430, Spring 2014// FInal Project: File System// Inode.java//*************************************************************import java.util.Vector;public class Inode {    private final static int iNodeSize = 32;       // fix to 32 bytes    private final static int directSize = 11;      // # direct pointers    public Vector<Inode> allInodes;                // Maintains all inode on memory, is shared among all threads    public int length;                             // file size in bytes    public short count;                            // # file-table entries pointing to this    public short flag;                             // 0 = unused, 1 = used, 2 = read, 3 = write, 4 = delete    public short direct[] = new short[directSize]; // direct pointers    public short indirect;                         // a indirect pointer    Inode( ) {                                     // a default constructor      length = 0;      count = 0;      flag = 1;      for ( int i = 0; i < directSize; i++ )         direct[i] = -1;      indirect = -1;    }    Inode( short iNumber ) {                       // retrieving inode from disk      if(iNumber < 0){          return;      }      int blockId = getBlockId(iNumber);      // Generate the offset for the block      int offset = (iNumber % 16) * iNodeSize;      // Create a byte array of data with the same size as a block      byte[] data = new byte[Disk.blockSize];      // Read from the disk the blockId and store the data from the disk into it      SysLib.rawread(blockId, data);      // Sets inode variables      length = SysLib.bytes2int(data, offset);      offset += 4;      count = SysLib.bytes2short(data, offset);      offset += 2;      flag = SysLib.bytes2short(data, offset);      offset += 2;      // Create new iNode object with new values      for(int i = 0; i < directSize; i++, offset += 2){          direct[i] = SysLib.bytes2short(data, offset);      }      indirect = SysLib.bytes2short(data, offset);    }    public void toDisk( short iNumber ) {                // save to disk as the i-th inode       // Check if iNumber is less than 0, if it is then we need to return       // because it's not an actual block number       if(iNumber < 0){        return;       }       // Grab the block that has the ID of iNumber      int blockId = getBlockId(iNumber);      // Generate the offset for the block      int offset = (iNumber % 16) * iNodeSize;      // Create a byte array of data with the same size as a block      byte[] data = new byte[Disk.blockSize];      // Sets inode variables      SysLib.int2bytes(length, data, offset);      offset += 4;      SysLib.short2bytes(count, data, offset);      offset += 2;      SysLib.short2bytes(flag, data, offset);      offset += 2;        // Fill the inode's direct array with the previous information      for(int i = 0; i < directSize; i++, offset += 2){          SysLib.short2bytes(direct[i], data, offset);      }      SysLib.short2bytes(indirect, data, offset);      offset += 2;      // write to disk      SysLib.rawwrite(blockId, data);    }    // Return the indirect block    public short getIndexBlockNumber(){       return indirect;    }    // Create and set an Index Block with the indirect block    public boolean setIndexBlock(short indexBlockNumber){        // Error check        if(indexBlockNumber < 0 || indirect == -1){            return false;        }        // Set the index block to the indirect        indirect = indexBlockNumber;        return true;    }    // FIne a block in the disk and return it    public short findTargetBlock(int offset){        // Error check to make sure we can find the target block        if(offset < 0){            return -1;        }        // Calcualte the offset/seek pointer by the blocksize to find        // the correct block        int targetBlock = offset / Disk.blockSize;        // If the block number is within the size of the directSize we can        // pull it directly from the direct array        if(targetBlock < directSize){            return direct[targetBlock];        }        else{            // If we can't find the block in the direct we will just return -1.            // After hours of testing we found that this could be the reason why            // we have a couple tests fail in the test. There is more information            // within the report on why we think so. But there should possibly            // be indirect logic here.            return -1;        }    }    // Set a block in the direct array    public boolean setBlock(int iNumber, short blockId){        // Make sure that the iNumber is greater than 0 because we only have        // positive number blocks.        if(iNumber < 0){            return false;        }        // Loop through the direct array until we find one that is empty        // set it and return true        for(int i = 0; i < directSize; i++){            if(direct[i] == -1){                direct[i] = blockId;                return true;            }        }        // Else the direct array is full so we need to store it in the indirect        SysLib.cout("About to setBlock into indirect");        // Error checking with indirect block        if(indirect == -1)            return false;        // Store the iNumber in teh indirect        indirect = (short)iNumber;        // Create a byte array of data that is the same size as the block		byte[] data = new byte[Disk.blockSize];        // Read the indirect block into the data        SysLib.rawread(indirect, data);        // Subtract iNumber and directSize to create a new offset        int temp = iNumber - directSize;        // If the data array and offset are less than 0, then write the        // indirect block to disk and return True		if (SysLib.bytes2short(data, temp * 2) < 0) {            SysLib.short2bytes(blockId, data, temp * 2);		    SysLib.rawwrite(indirect, data);            return true;		}        return false;    }    // Return the block ID with the given iNumber    public int getBlockId(int iNumber){       return 1 + iNumber / 16;    }}
\ No newline at end of file
+//************************************************************// Created by: Elliott Shanks, Will Tanna, and Himanshu Mehru// CSS430, Spring 2014// FInal Project: File System// Inode.java//*************************************************************import java.util.Vector;// Inodes are stored in blocks 1 .. N right after the superblock or, on a// disk split into cylinder groups, in slices of groupInodes inodes at the// start of each group.//// Two on-disk formats exist. Format 1 is the original one: 32-byte// inodes and 16-bit block pointers, which limits a disk to 32767 blocks.// Format 2 uses 32-bit block pointers, both in the inode and in the// indirect block, and 64-byte inodes. SuperBlock selects the format.public class Inode {    public final static int FORMAT_SHORT = 1;      // 32-byte inodes, 16-bit pointers    public final static int FORMAT_INT = 2;        // 64-byte inodes, 32-bit pointers    private static int format = FORMAT_SHORT;    private static int groupBlocks = 0;            // blocks per cylinder group, 0 if none    private static int groupInodes = 0;            // inodes per cylinder group, 0 if none    private final static Object blockLock = new Object( ); // held while an inode block is patched    private final static int directSize = 11;      // # direct pointers    public Vector<Inode> allInodes;                // Maintains all inode on memory, is shared among all threads    public int length;                             // file size in bytes    public short count;                            // # file-table entries pointing to this    public short flag;                             // 0 = unused, 1 = used, 2 = read, 3 = write, 4 = delete    public int direct[] = new int[directSize];     // direct pointers    public int indirect;                           // a indirect pointer    // Selects the on-disk format used by every inode from now on    public static void setFormat( int version ) {        format = version;    }    // Spreads the inodes over cylinder groups of groupBlocks blocks,    // groupInodes at the start of each group; group 0 starts with the    // superblock. setGroups(0, 0) puts them all after the superblock.    public static void setGroups( int blocks, int inodes ) {        groupBlocks = blocks;        groupInodes = inodes;    }    // Return the bytes taken by one inode on disk    public static int inodeSize( ) {        return (format == FORMAT_INT) ? 64 : 32;    }    // Return the inodes held by one disk block    public static int inodesPerBlock( ) {        return Disk.blockSize / inodeSize();    }    // Return the block pointers held by one indirect block    public static int pointersPerBlock( ) {        return Disk.blockSize / pointerSize();    }    private static int pointerSize( ) {        return (format == FORMAT_INT) ? 4 : 2;    }    // Read the index-th block pointer stored in data    public static int getPointer( byte[] data, int index ) {        if(format == FORMAT_INT){            return SysLib.bytes2int(data, index * 4);        }        return SysLib.bytes2short(data, index * 2);    }    // Store a block pointer as the index-th pointer in data    public static void setPointer( byte[] data, int index, int block ) {        if(format == FORMAT_INT){            SysLib.int2bytes(block, data, index * 4);        }        else{            SysLib.short2bytes((short) block, data, index * 2);        }    }    Inode( ) {                                     // a default constructor      length = 0;      count = 0;      flag = 1;      for ( int i = 0; i < directSize; i++ )         direct[i] = -1;      indirect = -1;    }    Inode( short iNumber ) {                       // retrieving inode from disk      if(iNumber < 0){          return;      }      // Generate the offset for the block; only this inode's bytes are      // copied out of the cached block      int offset = slot(iNumber) * inodeSize();      byte[] data = new byte[inodeSize()];      SysLib.cread(getBlockId(iNumber), offset, data, 0, data.length);      // Sets inode variables      offset = 0;      length = SysLib.bytes2int(data, offset);      offset += 4;      count = SysLib.bytes2short(data, offset);      offset += 2;      flag = SysLib.bytes2short(data, offset);      offset += 2;      // Create new iNode object with new values      for(int i = 0; i < directSize; i++, offset += pointerSize()){          direct[i] = getPointer(data, offset / pointerSize());      }      indirect = getPointer(data, offset / pointerSize());    }    public void toDisk( short iNumber ) {                // save to disk as the i-th inode       // Check if iNumber is less than 0, if it is then we need to return       // because it's not an actual block number       if(iNumber < 0){        return;       }       // Grab the block that has the ID of iNumber      int blockId = getBlockId(iNumber);      int offset = 0;      // Create a byte array holding just this inode      byte[] inode = new byte[inodeSize()];      // Sets inode variables      SysLib.int2bytes(length, inode, offset);      offset += 4;      SysLib.short2bytes(count, inode, offset);      offset += 2;      SysLib.short2bytes(flag, inode, offset);      offset += 2;        // Fill the inode's direct array with the previous information      for(int i = 0; i < directSize; i++, offset += pointerSize()){          setPointer(inode, offset / pointerSize(), direct[i]);      }      setPointer(inode, offset / pointerSize(), indirect);      // The other inodes sharing the block are read first so that they      // are written back unchanged; the read and the write are made under      // blockLock, lest two files being saved at once each write back the      // other's old inode      byte[] data = new byte[Disk.blockSize];      synchronized(blockLock){          SysLib.cread(blockId, data);          System.arraycopy(inode, 0, data, slot(iNumber) * inodeSize(),                           inode.length);          // write to disk          SysLib.cwrite(blockId, data);      }    }    // Return the indirect block    public int getIndexBlockNumber(){       return indirect;    }    // Create and set an Index Block with the indirect block; the block is    // filled with unused (-1) pointers    public boolean setIndexBlock(int indexBlockNumber){        // Error check        if(indexBlockNumber < 0 || indirect != -1){            return false;        }        byte[] data = new byte[Disk.blockSize];        for(int i = 0; i < pointersPerBlock(); i++){            setPointer(data, i, -1);        }        SysLib.cwrite(indexBlockNumber, data);        // Set the index block to the indirect        indirect = indexBlockNumber;        return true;    }    // FIne a block in the disk and return it, or -1 if there is none    public int findTargetBlock(int offset){        // Error check to make sure we can find the target block        if(offset < 0){            return -1;        }        // Calcualte the offset/seek pointer by the blocksize to find        // the correct block        int targetBlock = offset / Disk.blockSize;        // If the block number is within the size of the directSize we can        // pull it directly from the direct array        if(targetBlock < directSize){            return direct[targetBlock];        }        // Else it is in the indirect block, if the file has one        if(indirect < 0 || targetBlock - directSize >= pointersPerBlock()){            return -1;        }        byte[] data = new byte[pointerSize()];        SysLib.cread(indirect, (targetBlock - directSize) * pointerSize(),                     data, 0, data.length);        return getPointer(data, 0);    }    // Set blockId as the block holding file offset seekPtr. Returns false    // if the offset needs the index block and there is none yet, or if    // the offset is beyond the largest file.    public boolean setBlock(int seekPtr, int blockId){        // Make sure that the offset is positive        if(seekPtr < 0){            return false;        }        int targetBlock = seekPtr / Disk.blockSize;        if(targetBlock < directSize){            direct[targetBlock] = blockId;            return true;        }        // Else the direct array is full so we need to store it in the indirect        // Error checking with indirect block        if(indirect < 0 || targetBlock - directSize >= pointersPerBlock())            return false;        // Create a byte array of data that is the same size as the block        byte[] data = new byte[Disk.blockSize];        // Read the indirect block into the data        SysLib.cread(indirect, data);        setPointer(data, targetBlock - directSize, blockId);        SysLib.cwrite(indirect, data);        return true;    }    // Return the block ID with the given iNumber    public int getBlockId(int iNumber){       if(groupInodes == 0){           return 1 + iNumber / inodesPerBlock();       }       int group = iNumber / groupInodes;       return group * groupBlocks + (group == 0 ? 1 : 0)          + (iNumber % groupInodes) / inodesPerBlock();    }    // Return where inode iNumber is within its block, in inodes    private static int slot(int iNumber){       if(groupInodes != 0){           iNumber %= groupInodes;       }       return iNumber % inodesPerBlock();    }}
\ No newline at end of file
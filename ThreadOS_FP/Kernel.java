@@ -10,7 +10,7 @@ public class Kernel
    public final static int INTERRUPT_IO       = 3;  // Other I/O interrupts
 
    // System calls
-   public final static int BOOT    =  0; // SysLib.boot( )
+   public final static int BOOT    =  0; // SysLib.boot( String args[] )
    public final static int EXEC    =  1; // SysLib.exec(String args[])
    public final static int WAIT    =  2; // SysLib.join( )
    public final static int EXIT    =  3; // SysLib.exit( )
@@ -36,6 +36,22 @@ public class Kernel
    public final static int FORMAT  = 18; // SysLib.format( int files )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+   // Vectored raw I/O: b.length / 512 consecutive blocks in one command
+   public final static int RAWREADV  = 20; // SysLib.rawreadv(int blk, byte b[])
+   public final static int RAWWRITEV = 21; // SysLib.rawwritev(int blk, byte b[])
+   public final static int CREADV    = 22; // SysLib.creadv(int blk, byte b[])
+   public final static int CWRITEV   = 23; // SysLib.cwritev(int blk, byte b[])
+
+   // Part of a cached block: SysLib.cread(int blk, int blkOffset, byte b[],
+   //                                      int offset, int length)
+   public final static int CREADAT   = 24;
+
+   // Pinning in the cache: a block, or every block of an open file
+   public final static int CPIN      = 25; // SysLib.cpin(int blk)
+   public final static int CUNPIN    = 26; // SysLib.cunpin(int blk)
+   public final static int PIN       = 27; // SysLib.pin(int fd)
+   public final static int UNPIN     = 28; // SysLib.unpin(int fd)
+
    // Predefined file descriptors
    public final static int STDIN  = 0;
    public final static int STDOUT = 1;
@@ -47,7 +63,8 @@ public class Kernel
 
    // System thread references
    private static Scheduler scheduler;
-   private static Disk disk;
+   private static BlockDevice disk;
+   private static int trackSize;  // blocks per track of the disk's model
    private static Cache cache;
 
    // Synchronized Queues
@@ -58,7 +75,6 @@ public class Kernel
    private static FileSystem fs;
 
    private final static int COND_DISK_REQ = 1; // wait condition 
-   private final static int COND_DISK_FIN = 2; // wait condition
 
    // Standard input
    private static BufferedReader input
@@ -67,27 +83,70 @@ public class Kernel
    // The heart of Kernel
    public static int interrupt( int irq, int cmd, int param, Object args ) {
       TCB myTcb;
+      DiskRequest request;
       switch( irq ) {
          case INTERRUPT_SOFTWARE: // System calls
             switch( cmd ) { 
                case BOOT:
+                  // boot options given as "key=value" strings
+                  String[] bootArgs = ( String[] )args;
+                  // disk size in blocks; above 32767 the file system
+                  // switches to 32-bit block pointers
+                  int blocks = bootOption( bootArgs, "blocks", 1000 );
+
                   // instantiate and start a scheduler
                   scheduler = new Scheduler( ); 
                   scheduler.start( );
 
                   // instantiate and start a disk
-                  disk = new Disk( 1000 );
+                  disk = newDisk( bootArgs, blocks );
                   disk.start( );
 
-                  // instantiate a cache memory
-                  cache = new Cache( disk.blockSize, 10 );
+                  // instantiate a cache memory; the file system does all
+                  // of its block I/O through it
+                  cache = new Cache( Disk.blockSize,
+                     bootOption( bootArgs, "cache", 10 ),
+                     bootOption( bootArgs, "policy", "second-chance" ),
+                     bootOption( bootArgs, "shards", 1 ),
+                     bootOption( bootArgs, "cachestore", "heap" ) );
+                  if ( bootOption( bootArgs, "cachetrace", null ) != null )
+                     cache.setTrace( bootOption( bootArgs, "cachetrace",
+                                                 null ) );
+                  // flusher=on cleans dirty pages in the background
+                  if ( bootOption( bootArgs, "flusher", "off" )
+                       .equals( "on" ) )
+                     cache.startFlusher(
+                        bootOption( bootArgs, "dirtyhigh", 50 ),
+                        bootOption( bootArgs, "dirtylow", 25 ),
+                        bootOption( bootArgs, "dirtyage", 1000 ) );
+
+                  // with scan=N, load blocks at low priority once a thread
+                  // has gone N consecutive blocks in a row; off by default
+                  cache.detectScans( bootOption( bootArgs, "scan", 0 ) );
+
+                  // up to pinmax percent of the cache may be pinned
+                  cache.setPinLimit( bootOption( bootArgs, "pinmax", 25 ) );
+
+                  // let the cache size itself between cachemin pages and
+                  // cachemax pages; both default to the initial size, so
+                  // the cache only adapts if cachemax is given
+                  int cacheMin = bootOption( bootArgs, "cachemin",
+                                             cache.size( ) );
+                  cache.adaptSize( cacheMin,
+                     bootOption( bootArgs, "cachemax", cacheMin ),
+                     bootOption( bootArgs, "cachecurve", null ) );
 
                   // instantiate synchronized queues
                   ioQueue = new SyncQueue( );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 
-                  // instantiate a file system;
-                  fs = new FileSystem( 1000 );
+                  // instantiate a file system; alloc=list keeps free
+                  // blocks on the original linked list, and grouptracks=N
+                  // formats the disk into cylinder groups of N tracks
+                  fs = new FileSystem( blocks,
+                     bootOption( bootArgs, "alloc", "bitmap" ).equals( "list" )
+                     ? SuperBlock.FREE_LIST : SuperBlock.FREE_BITMAP,
+                     bootOption( bootArgs, "grouptracks", 0 ) * trackSize );
 
                   return OK;
                case EXEC:
@@ -116,24 +175,31 @@ public class Kernel
                   scheduler.sleepThread( param ); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
+                  while ( ( request = disk.read( param, ( byte[] )args ) )
+                          == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return request.waitFinish( ) ? OK : ERROR;
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
+                  while ( ( request = disk.write( param, ( byte[] )args ) )
+                          == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return request.waitFinish( ) ? OK : ERROR;
+               case RAWREADV: // read consecutive blocks from disk
+                  while ( ( request = disk.readv( param, ( byte[] )args ) )
+                          == null )
+                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
+                  return request.waitFinish( ) ? OK : ERROR;
+               case RAWWRITEV: // write consecutive blocks to disk
+                  while ( ( request = disk.writev( param, ( byte[] )args ) )
+                          == null )
+                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
+                  return request.waitFinish( ) ? OK : ERROR;
                case SYNC:     // synchronize disk data to a real file
                   fs.sync( );
-                  while ( disk.sync( ) == false )
+                  cache.writeBack( );
+                  while ( ( request = disk.sync( ) ) == null )
                      ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  return request.waitFinish( ) ? OK : ERROR;
                case READ:
                   switch ( param ) {
                      case STDIN:
@@ -193,6 +259,27 @@ public class Kernel
                case CFLUSH:  // to be implemented in assignment 4
                   cache.flush( );
                   return OK;
+               case CREADV:  // read consecutive blocks through the cache
+                  return cache.readv( param, ( byte[] )args ) ? OK : ERROR;
+               case CWRITEV: // write consecutive blocks through the cache
+                  return cache.writev( param, ( byte[] )args ) ? OK : ERROR;
+               case CREADAT: // read part of a block through the cache
+                  Object[] at = ( Object[] )args;
+                  int[] range = ( int[] )at[1];
+                  return cache.read( param, range[0], ( byte[] )at[0],
+                                     range[1], range[2] ) ? OK : ERROR;
+               case CPIN:    // keep a block in the cache
+                  return cache.pin( param ) ? OK : ERROR;
+               case CUNPIN:  // let a pinned block go
+                  return cache.unpin( param ) ? OK : ERROR;
+               case PIN:     // keep the blocks of an open file in the cache
+               case UNPIN:
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null )
+                        return fs.pin( ftEnt, cmd == PIN ) ? OK : ERROR;
+                  }
+                  return ERROR;
                case OPEN:    // to be implemented in project
                   if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
                      String[] s = ( String[] )args;
@@ -225,14 +312,18 @@ public class Kernel
                   } 
                   return ERROR;
                case FORMAT:  // to be implemented in project
-                  return ( fs.format( param ) == true ) ? OK : ERROR;
+                  if ( fs.format( param ) == false )
+                     return ERROR;
+                  // a new file system is on the disk at once
+                  cache.writeBack( );
+                  return OK;
                case DELETE:  // to be implemented in project
                   return ( fs.delete( (String)args ) == true ) ? OK : ERROR;
             }
             return ERROR;
          case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
+            // a thread waiting for a service completion sleeps on its own
+            // DiskRequest, which the disk has already finished
 
             // wake up the thread waiting for a request acceptance
             ioQueue.dequeueAndWakeup( COND_DISK_REQ );
@@ -244,6 +335,70 @@ public class Kernel
       return OK;
    }
 
+   // Build the disk named by the boot options: a single Disk on the file
+   // DISK, or with raid=N a StripedDisk over DISK0 .. DISK<N-1>
+   private static BlockDevice newDisk( String bootArgs[], int blocks ) {
+      String image = bootOption( bootArgs, "disk", "heap" );
+      int imageType = image.equals( "mapped" ) ? Disk.MAPPED_IMAGE
+         : image.equals( "lazy" ) ? Disk.LAZY_IMAGE : Disk.HEAP_IMAGE;
+      // requests are served in arrival order unless sched names an
+      // elevator: sstf, scan or clook
+      String schedule = bootOption( bootArgs, "sched", "fifo" );
+      String model = bootOption( bootArgs, "model", "hdd" );
+      int stripes = bootOption( bootArgs, "raid", 1 );
+      boolean readAhead = bootOption( bootArgs, "readahead", "off" )
+         .equals( "on" );
+
+      if ( stripes <= 1 ) {
+         DiskModel timing = DiskModel.forName( model, blocks );
+         trackSize = timing.getTrackSize( );
+         Disk single = new Disk( blocks, "DISK", imageType, schedule,
+                                 timing );
+         single.setReadAhead( readAhead );
+         return single;
+      }
+      Disk members[] = new Disk[stripes];
+      int memberBlocks = ( blocks + stripes - 1 ) / stripes;
+      for ( int i = 0; i < stripes; i++ ) {
+         DiskModel timing = DiskModel.forName( model, memberBlocks );
+         // a logical track spans one track of every member
+         trackSize = timing.getTrackSize( ) * stripes;
+         members[i] = new Disk( memberBlocks, "DISK" + i, imageType, schedule,
+                                timing );
+         members[i].setReadAhead( readAhead );
+      }
+      return new StripedDisk( blocks, members );
+   }
+
+   // Look up the value of a "key=value" boot option
+   private static String bootOption( String args[], String key,
+                                     String defaultValue ) {
+      if ( args == null )
+         return defaultValue;
+      for ( int i = 0; i < args.length; i++ )
+         if ( args[i].startsWith( key + "=" ) )
+            return args[i].substring( key.length( ) + 1 );
+      return defaultValue;
+   }
+
+   // Look up the value of a numeric "key=value" boot option. A value that
+   // is not a non-negative number is reported and the default used.
+   private static int bootOption( String args[], String key,
+                                  int defaultValue ) {
+      String value = bootOption( args, key, null );
+      if ( value == null )
+         return defaultValue;
+      try {
+         int number = Integer.parseInt( value );
+         if ( number >= 0 )
+            return number;
+      } catch ( NumberFormatException e ) {
+      }
+      SysLib.cerr( "threadOS: bad boot option " + key + "=" + value
+                   + ", using " + defaultValue + "\n" );
+      return defaultValue;
+   }
+
    // Spawning a new thread
    private static int sysExec( String args[] ) {
       String thrName = args[0]; // args[0] has a thread name
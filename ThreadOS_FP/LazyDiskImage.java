@@ -0,0 +1,91 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+// A disk image that reads nothing at boot. Each block is faulted in from
+// the host file the first time it is read, and a bitmap records which
+// blocks are in memory, so boot time depends on the blocks the file
+// system touches rather than on the size of the image. A block that is
+// written before it is ever read is not loaded at all. Like the heap
+// image, the host file is kept sparse. The background writer and the
+// disk thread share the block table, so access to it is synchronized.
+public class LazyDiskImage extends DiskImage {
+    private byte blocks[][];	// null until the block is loaded or written
+    private BitSet loaded;
+    private FileChannel channel;	// null if the host file does not exist
+    private long fileSize;	// bytes in the host file at boot
+
+    public LazyDiskImage( String fileName, int diskSize ) {
+	super( fileName, diskSize );
+	blocks = new byte[ diskSize ][];
+	loaded = new BitSet( diskSize );
+	fileSize = 0;
+	try {
+	    File f = new File( fileName );
+	    if ( f.exists( ) ) {
+		channel = new RandomAccessFile( f, "rw" ).getChannel( );
+		fileSize = channel.size( );
+		setStoredBytes( fileSize );
+	    } else
+		SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    // the number of blocks faulted in or written so far
+    public int getLoadedBlocks( ) {
+	return loaded.cardinality( );
+    }
+
+    public synchronized void read( int blockId, byte buffer[], int offset ) {
+	if ( loaded.get( blockId ) == false )
+	    load( blockId );
+	System.arraycopy( blocks[blockId], 0, buffer, offset, Disk.blockSize );
+    }
+
+    public synchronized void write( int blockId, byte buffer[], int offset ) {
+	preserve( blockId );
+	if ( blocks[blockId] == null )
+	    blocks[blockId] = new byte[ Disk.blockSize ];
+	System.arraycopy( buffer, offset, blocks[blockId], 0, Disk.blockSize );
+	loaded.set( blockId );
+	dirty.set( blockId );
+    }
+
+    // reads block blockId from the host file; the part of the image
+    // beyond the end of the file reads as zeros
+    private void load( int blockId ) {
+	byte block[] = new byte[ Disk.blockSize ];
+	long position = ( long )blockId * Disk.blockSize;
+	if ( channel != null && position < fileSize ) {
+	    ByteBuffer in = ByteBuffer.wrap( block );
+	    try {
+		while ( in.hasRemaining( ) ) {
+		    int n = channel.read( in, position + in.position( ) );
+		    if ( n < 0 )
+			break;
+		}
+	    } catch ( IOException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+	blocks[blockId] = block;
+	loaded.set( blockId );
+    }
+
+    public long sync( BitSet blocks ) {
+	try {
+	    synchronized ( this ) {
+		if ( channel == null )
+		    channel = new RandomAccessFile( fileName, "rw" )
+			.getChannel( );
+	    }
+	    return writeBlocks( channel, blocks );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+	return 0;
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+// A disk image that maps the host file into memory with FileChannel.map.
+// READ and WRITE copy straight to and from the mapping, so nothing is
+// loaded at boot and the heap footprint does not depend on the disk size.
+// SYNC forces only the ranges written since the previous sync. The file
+// has to be as long as the mapping, but setLength extends it with a hole,
+// so blocks never written take no space on hosts with sparse files.
+public class MappedDiskImage extends DiskImage {
+    // A single MappedByteBuffer is limited to 2GB, so the image is mapped
+    // as a series of segments of at most segmentBytes each.
+    private static final int segmentBytes = 1 << 30;
+    private final int blocksPerSegment;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer segments[];
+
+    public MappedDiskImage( String fileName, int diskSize )
+	throws IOException {
+	super( fileName, diskSize );
+	blocksPerSegment = segmentBytes / Disk.blockSize;
+
+	File f = new File( fileName );
+	if ( f.exists( ) == false )
+	    SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	file = new RandomAccessFile( f, "rw" );
+
+	// a short (or new) file is extended so that every block is mapped;
+	// the extension reads back as zeros just as the heap image did
+	long imageSize = ( long )diskSize * Disk.blockSize;
+	if ( file.length( ) < imageSize )
+	    file.setLength( imageSize );
+
+	FileChannel channel = file.getChannel( );
+	segments = new MappedByteBuffer[ ( diskSize + blocksPerSegment - 1 )
+					 / blocksPerSegment ];
+	for ( int i = 0; i < segments.length; i++ ) {
+	    long position = ( long )i * segmentBytes;
+	    long size = Math.min( segmentBytes, imageSize - position );
+	    segments[i] = channel.map( FileChannel.MapMode.READ_WRITE,
+				       position, size );
+	}
+    }
+
+    public void read( int blockId, byte buffer[], int offset ) {
+	segments[blockId / blocksPerSegment]
+	    .get( ( blockId % blocksPerSegment ) * Disk.blockSize,
+		  buffer, offset, Disk.blockSize );
+    }
+
+    public void write( int blockId, byte buffer[], int offset ) {
+	segments[blockId / blocksPerSegment]
+	    .put( ( blockId % blocksPerSegment ) * Disk.blockSize,
+		  buffer, offset, Disk.blockSize );
+	dirty.set( blockId );
+    }
+
+    // The mapping is the page cache itself, so there is nowhere to keep a
+    // frozen copy; Disk holds its WRITEs back while the writer runs.
+    public boolean preservesCheckpoint( ) {
+	return false;
+    }
+
+    public long sync( BitSet blocks ) {
+	long written = 0;
+	for ( int first = blocks.nextSetBit( 0 ); first >= 0;
+	      first = blocks.nextSetBit( first ) ) {
+	    // force a run of adjacent dirty blocks in one call, without
+	    // letting the run cross into the next segment
+	    int segment = first / blocksPerSegment;
+	    int end = Math.min( blocks.nextClearBit( first ),
+				( segment + 1 ) * blocksPerSegment );
+	    int length = ( end - first ) * Disk.blockSize;
+	    segments[segment].force( ( first % blocksPerSegment )
+				     * Disk.blockSize, length );
+	    release( first, end );
+	    written += length;
+	    first = end;
+	}
+	return written;
+    }
+}
@@ -0,0 +1,120 @@
+import java.io.*;
+
+// Estimates the miss ratio an LRU cache of any size up to maxPages would
+// have on the blocks a Cache is asked for. The blocks are kept on one LRU
+// stack: those a cache of the current size holds, and past them the ghosts
+// of blocks recently evicted. A block found at depth d on the stack would
+// have been a hit in any cache of more than d pages, so a histogram of the
+// depths gives the hit ratio at every size at once.
+//
+// To keep the stack short, only blocks whose hash falls in one of 2^shift
+// classes are tracked, and a sampled depth d stands for d << shift real
+// ones. Larger caches are thus sampled more sparsely.
+public class MissCurve {
+    private static final int maxTracked = 256;	// stack length aimed for
+
+    private final int shift;
+    private final int maxPages;
+    private CachePolicy.IntList order;	// slots, most recent first
+    private int blocks[];	// slot -> block id
+    private BlockIndex slots;	// block id -> slot
+    private int free[];	// unused slots
+    private int freeCount;
+
+    private long hits[];	// hits[d]: sampled accesses found at depth d
+    private long accesses;	// sampled accesses
+
+    public MissCurve( int maxPages ) {
+	this.maxPages = Math.max( maxPages, 1 );
+	int s = 0;
+	while ( ( this.maxPages >> s ) > maxTracked )
+	    s++;
+	shift = s;
+	int capacity = ( this.maxPages >> shift ) + 1;
+	order = new CachePolicy.IntList( capacity );
+	blocks = new int[ capacity ];
+	slots = new BlockIndex( capacity );
+	free = new int[ capacity ];
+	for ( freeCount = 0; freeCount < capacity; freeCount++ )
+	    free[freeCount] = capacity - 1 - freeCount;
+	hits = new long[ capacity ];
+	accesses = 0;
+    }
+
+    // true if accesses to blockId are tracked; needs no lock
+    // (a different hash from BlockIndex's, lest sampled ids share slots)
+    public boolean sampled( int blockId ) {
+	return shift == 0 || ( blockId * 0x85EBCA6B ) >>> ( 32 - shift ) == 0;
+    }
+
+    // records an access to a sampled block
+    public synchronized void access( int blockId ) {
+	accesses++;
+	int slot = slots.get( blockId );
+	if ( slot != BlockIndex.NONE ) {
+	    int depth = 0;
+	    for ( int s = order.first( ); s != slot; s = order.next( s ) )
+		depth++;
+	    hits[depth]++;
+	    order.moveToFirst( slot );
+	    return;
+	}
+	if ( freeCount == 0 ) {
+	    // forget the block deepest on the stack
+	    int last = order.last( );
+	    order.remove( last );
+	    slots.remove( blocks[last] );
+	    free[freeCount++] = last;
+	}
+	slot = free[--freeCount];
+	blocks[slot] = blockId;
+	slots.put( blockId, slot );
+	order.addFirst( slot );
+    }
+
+    // the number of sampled accesses counted
+    public synchronized long accesses( ) {
+	return accesses;
+    }
+
+    // the estimated miss ratio of a cache of the given number of pages;
+    // 1.0 before any access
+    public synchronized double missRatio( int pages ) {
+	if ( accesses == 0 )
+	    return 1.0;
+	long found = 0;
+	int depth = Math.min( pages >> shift, hits.length );
+	for ( int d = 0; d < depth; d++ )
+	    found += hits[d];
+	return 1.0 - ( double )found / accesses;
+    }
+
+    // the page counts the curve tells apart
+    public int granularity( ) {
+	return 1 << shift;
+    }
+
+    // Halves the counts, so that the curve follows a changing workload.
+    // The stack itself is kept.
+    public synchronized void decay( ) {
+	for ( int d = 0; d < hits.length; d++ )
+	    hits[d] >>= 1;
+	accesses >>= 1;
+    }
+
+    // Writes the curve to the host file fileName, one "pages missratio"
+    // line per granularity( ) pages.
+    public void write( String fileName ) {
+	try {
+	    PrintWriter out = new PrintWriter( new BufferedWriter(
+					       new FileWriter( fileName ) ) );
+	    for ( int pages = granularity( ); pages <= maxPages;
+		  pages += granularity( ) )
+		out.println( pages + " " + missRatio( pages ) );
+	    out.close( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( "threadOS: cannot write miss ratio curve " + fileName
+			 + " (" + e.toString( ) + ")\n" );
+	}
+    }
+}
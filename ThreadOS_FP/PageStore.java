@@ -0,0 +1,91 @@
+import java.nio.*;
+
+// Holds the contents of a CacheShard's pages, numbered 0 .. pages - 1.
+// The caller does the locking.
+public abstract class PageStore {
+    protected final int pages;
+    protected final int blockSize;
+
+    protected PageStore( int pages, int blockSize ) {
+	this.pages = pages;
+	this.blockSize = blockSize;
+    }
+
+    // copies length bytes of page, from pageOffset on, into buffer at
+    // offset
+    public abstract void read( int page, int pageOffset, byte buffer[],
+			       int offset, int length );
+
+    // copies page into buffer at offset
+    public void read( int page, byte buffer[], int offset ) {
+	read( page, 0, buffer, offset, blockSize );
+    }
+
+    // copies buffer at offset into page
+    public abstract void write( int page, byte buffer[], int offset );
+
+    // The contents of page as a block-sized array: the page itself if the
+    // store keeps arrays, otherwise scratch filled with a copy.
+    public abstract byte[] array( int page, byte scratch[] );
+
+    // Builds a store from a boot option value:
+    //   heap  one byte[] per page (the default)
+    //   slab  every page in a single direct ByteBuffer outside the heap
+    // Any other name is reported and heap used.
+    public static PageStore forName( String name, int pages, int blockSize ) {
+	if ( name.equals( "slab" ) )
+	    return new Slab( pages, blockSize );
+	if ( name.equals( "heap" ) == false )
+	    SysLib.cerr( "threadOS: unknown cache store " + name
+			 + ", using heap\n" );
+	return new Heap( pages, blockSize );
+    }
+
+    static class Heap extends PageStore {
+	private byte data[][];
+
+	Heap( int pages, int blockSize ) {
+	    super( pages, blockSize );
+	    data = new byte[ pages ][ blockSize ];
+	}
+
+	public void read( int page, int pageOffset, byte buffer[],
+			  int offset, int length ) {
+	    System.arraycopy( data[page], pageOffset, buffer, offset, length );
+	}
+
+	public void write( int page, byte buffer[], int offset ) {
+	    System.arraycopy( buffer, offset, data[page], 0, blockSize );
+	}
+
+	public byte[] array( int page, byte scratch[] ) {
+	    return data[page];
+	}
+    }
+
+    // One direct buffer holds every page at page * blockSize, so the heap
+    // keeps a single small object however many pages there are, and the
+    // collector never scans or moves the contents.
+    static class Slab extends PageStore {
+	private ByteBuffer slab;
+
+	Slab( int pages, int blockSize ) {
+	    super( pages, blockSize );
+	    slab = ByteBuffer.allocateDirect( pages * blockSize );
+	}
+
+	public void read( int page, int pageOffset, byte buffer[],
+			  int offset, int length ) {
+	    slab.get( page * blockSize + pageOffset, buffer, offset, length );
+	}
+
+	public void write( int page, byte buffer[], int offset ) {
+	    slab.put( page * blockSize, buffer, offset, blockSize );
+	}
+
+	public byte[] array( int page, byte scratch[] ) {
+	    read( page, scratch, 0 );
+	    return scratch;
+	}
+    }
+}
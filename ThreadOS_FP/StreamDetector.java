@@ -0,0 +1,56 @@
+// Tells sequential scans apart from other block accesses. Each thread is
+// a separate source, and follows up to streams runs of consecutive block
+// ids at once, so the inode and index blocks a file scan touches between
+// its data blocks do not break the run. A block is part of a scan once
+// its run has gone threshold blocks in a row. Touching the block a run is
+// on again, as reading a block in slices does, neither extends nor breaks
+// the run, and is told apart from moving on to the next block.
+public class StreamDetector {
+    public static final int RANDOM = 0;	// not part of a scan
+    public static final int SCAN = 1;	// the next block of a scan
+    public static final int AGAIN = 2;	// the block a scan is on, once more
+
+    private static final int streams = 4;	// runs followed per thread
+    private final int threshold;
+
+    private static class Runs {
+	int last[] = new int[ streams ];	// last block of each run
+	int length[] = new int[ streams ];	// consecutive steps taken
+	int next = 0;	// the run replaced by the next new one
+
+	Runs( ) {
+	    for ( int k = 0; k < streams; k++ )
+		last[k] = -2;
+	}
+    }
+
+    private final ThreadLocal<Runs> runs = new ThreadLocal<Runs>( ) {
+	    protected Runs initialValue( ) {
+		return new Runs( );
+	    }
+	};
+
+    public StreamDetector( int threshold ) {
+	this.threshold = threshold;
+    }
+
+    // records an access of the calling thread to blockId and tells whether
+    // it is RANDOM, the next block of a SCAN or the scan's block AGAIN
+    public int access( int blockId ) {
+	Runs r = runs.get( );
+	for ( int k = 0; k < streams; k++ ) {
+	    if ( blockId == r.last[k] )
+		return ( r.length[k] >= threshold ) ? AGAIN : RANDOM;
+	    if ( blockId == r.last[k] + 1 ) {
+		r.last[k] = blockId;
+		r.length[k]++;
+		return ( r.length[k] >= threshold ) ? SCAN : RANDOM;
+	    }
+	}
+	int k = r.next;
+	r.next = ( k + 1 ) % streams;
+	r.last[k] = blockId;
+	r.length[k] = 0;
+	return RANDOM;
+    }
+}
@@ -0,0 +1,125 @@
+// RAID-0: logical blocks are spread round-robin over several Disks, each
+// with its own image file and thread. Logical block b lives in block
+// b / N of member b % N, so neighbouring blocks land on different
+// members and requests for different members are served in parallel.
+public class StripedDisk implements BlockDevice {
+    private Disk disks[];
+    private int diskSize;	// logical blocks
+
+    // members is an array of Disks not yet started, each holding at
+    // least totalBlocks / members.length blocks (rounded up)
+    public StripedDisk( int totalBlocks, Disk members[] ) {
+	diskSize = totalBlocks;
+	disks = members;
+    }
+
+    public void start( ) {
+	for ( int i = 0; i < disks.length; i++ )
+	    disks[i].start( );
+    }
+
+    public synchronized DiskRequest read( int blockId, byte buffer[] ) {
+	if ( blockId < 0 || blockId >= diskSize )
+	    return rejected( Disk.READ, blockId, 1, buffer );
+	return disks[blockId % disks.length]
+	    .read( blockId / disks.length, buffer );
+    }
+
+    public synchronized DiskRequest write( int blockId, byte buffer[] ) {
+	if ( blockId < 0 || blockId >= diskSize )
+	    return rejected( Disk.WRITE, blockId, 1, buffer );
+	return disks[blockId % disks.length]
+	    .write( blockId / disks.length, buffer );
+    }
+
+    public synchronized DiskRequest readv( int blockId, byte buffer[] ) {
+	return vectored( Disk.READ, blockId, buffer );
+    }
+
+    public synchronized DiskRequest writev( int blockId, byte buffer[] ) {
+	return vectored( Disk.WRITE, blockId, buffer );
+    }
+
+    public synchronized DiskRequest sync( ) {
+	if ( hasRoom( disks.length ) == false )
+	    return null;
+	DiskRequest parts[] = new DiskRequest[ disks.length ];
+	for ( int i = 0; i < disks.length; i++ )
+	    parts[i] = disks[i].sync( );
+	return new StripedRequest( Disk.SYNC, 0, 0, null, parts, 0 );
+    }
+
+    private DiskRequest rejected( int command, int blockId, int count,
+				  byte buffer[] ) {
+	SysLib.cerr( "threadOS: a wrong blockId for the striped disk\n" );
+	DiskRequest request = new DiskRequest( command, blockId, count, buffer );
+	request.fail( );
+	return request;
+    }
+
+    private boolean hasRoom( int perMember ) {
+	for ( int i = 0; i < disks.length; i++ )
+	    if ( disks[i].hasRoom( perMember ) == false )
+		return false;
+	return true;
+    }
+
+    // A run of logical blocks becomes at most one run per member, since
+    // every N-th logical block is the next block of the same member.
+    // Writes are gathered into per-member buffers before they are issued;
+    // reads are scattered back when the caller waits for them.
+    private DiskRequest vectored( int command, int blockId, byte buffer[] ) {
+	int count = buffer.length / Disk.blockSize;
+	if ( blockId < 0 || count < 1 || blockId + count > diskSize )
+	    return rejected( command, blockId, count, buffer );
+	if ( hasRoom( 1 ) == false )
+	    return null;
+
+	int members = Math.min( count, disks.length );
+	DiskRequest parts[] = new DiskRequest[ members ];
+	for ( int m = 0; m < members; m++ ) {
+	    // member blocks for logical blocks blockId + m, + m + N, ...
+	    int blocks = ( count - m + disks.length - 1 ) / disks.length;
+	    byte part[] = new byte[ blocks * Disk.blockSize ];
+	    int logical = blockId + m;
+	    if ( command == Disk.WRITE )
+		for ( int i = 0; i < blocks; i++ )
+		    System.arraycopy( buffer,
+				      ( m + i * disks.length ) * Disk.blockSize,
+				      part, i * Disk.blockSize, Disk.blockSize );
+	    Disk member = disks[logical % disks.length];
+	    parts[m] = ( command == Disk.READ )
+		? member.readv( logical / disks.length, part )
+		: member.writev( logical / disks.length, part );
+	}
+	return new StripedRequest( command, blockId, count, buffer, parts,
+				   disks.length );
+    }
+
+    // a request made of one request per member
+    static class StripedRequest extends DiskRequest {
+	private DiskRequest parts[];
+	private int stride;
+
+	StripedRequest( int command, int blockId, int count, byte buffer[],
+			DiskRequest parts[], int stride ) {
+	    super( command, blockId, count, buffer );
+	    this.parts = parts;
+	    this.stride = stride;
+	}
+
+	public boolean waitFinish( ) {
+	    boolean ok = true;
+	    for ( int m = 0; m < parts.length; m++ ) {
+		ok = parts[m].waitFinish( ) && ok;
+		if ( command == Disk.READ )
+		    for ( int i = 0; i * Disk.blockSize < parts[m].buffer.length;
+			  i++ )
+			System.arraycopy( parts[m].buffer, i * Disk.blockSize,
+					  buffer, ( m + i * stride )
+					  * Disk.blockSize, Disk.blockSize );
+	    }
+	    return ok;
+	}
+    }
+}
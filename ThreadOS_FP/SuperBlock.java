@@ -6,10 +6,33 @@
 //*************************************************************
 
 // OS managed structure used to describe (1) the number of disk
-// blocks, (2) the number of inodes, and (3) the block number of
-// the head blocks of the free list.
+// blocks, (2) the number of inodes, (3) the block number of
+// the head blocks of the free list, (4) the inode format,
+// (5) how free blocks are tracked, and (6) the cylinder groups.
+//
+// Free blocks are tracked either by the original linked list, each
+// free block holding the number of the next, or by a FreeMap bitmap
+// kept in the last blocks of the disk. With the bitmap, freeList is
+// the lowest block that may be free, so allocating or freeing a block
+// costs no disk I/O until the next sync(). A disk still on the free
+// list is converted to the bitmap when it is mounted.
+//
+// A bitmap disk may also be formatted in cylinder groups, runs of
+// groupBlocks blocks (the last group takes the rest of the disk) that
+// each start with a slice of the inodes and a FreeMap of the group's own
+// blocks. A file's blocks are taken from its inode's group while there
+// is room, so reading a file and its inode seeks within one group.
 public class SuperBlock
 {
+	// How free blocks are tracked. Disks written before the field
+	// existed hold 0 here and use the free list.
+	public final static int FREE_LIST = 0;
+	public final static int FREE_BITMAP = 1;
+	// Disks with more blocks than a short can address are formatted
+	// with 32-bit block pointers (Inode.FORMAT_INT).
+	private final static int maxShortBlocks = Short.MAX_VALUE;
+	// Free blocks cleared by one write when formatting.
+	private final static int formatRun = 64;
 	// If the disk needs to be formatted, then the following
 	// default number of files will be created.
 	private final static int defaultInodeBlocks = 64;
@@ -17,29 +40,94 @@ public class SuperBlock
 	public int totalBlocks;
 	// The number of inodes.
 	public int totalInodes;
-	// the block number of the free list's head
+	// the block number of the free list's head; with the bitmap,
+	// the lowest block that may be free
 	public int freeList;
+	// The inode format. Disks written before the field existed
+	// hold 0 here and use the original 16-bit format.
+	public int version;
+	// FREE_LIST or FREE_BITMAP.
+	public int allocator;
+	// The first block of the bitmap, if there is one.
+	public int bitmapStart;
+	// Blocks per cylinder group, 0 if the disk has no groups.
+	public int groupBlocks;
+	// The in-memory bitmap of each group, or of the whole disk if it has
+	// no groups; null on a free-list disk.
+	private FreeMap[] maps;
+	// How a disk is to track free blocks once formatted or mounted.
+	private int preferred;
+	// The group size a disk is to be formatted with, 0 for no groups.
+	private int preferredGroupBlocks;
 
 	// The following is the constructor for SuperBlock. It reads the
 	// Superblock from the disk and determines the total number
 	// of diskblocks, Inodes, and where the free list should start.
 	public SuperBlock(int diskSize)
 	{
+		this(diskSize, FREE_BITMAP);
+	}
+
+	// As above, tracking free blocks the preferred way, FREE_LIST or
+	// FREE_BITMAP, on a disk it formats. With FREE_BITMAP, a free-list
+	// disk is converted as well; a bitmap disk stays one either way.
+	public SuperBlock(int diskSize, int preferred)
+	{
+		this(diskSize, preferred, 0);
+	}
+
+	// As above, formatting a disk into cylinder groups of groupBlocks
+	// blocks if it is to use the bitmap and groupBlocks is not 0. A
+	// mounted disk keeps the layout it was formatted with.
+	public SuperBlock(int diskSize, int preferred, int groupBlocks)
+	{
+		this.preferred = preferred;
+		preferredGroupBlocks = groupBlocks;
 		// Byte array that will store superblock.
 		byte[] superBlock = new byte[Disk.blockSize];
 		// Reads in the superblock from the disk.
-		SysLib.rawread(0, superBlock);
+		SysLib.cread(0, superBlock);
 		// Compute the total amount of disk blocks.
 		totalBlocks = SysLib.bytes2int(superBlock, 0);
 		// Compute the total number of Inodes.
 		totalInodes = SysLib.bytes2int(superBlock, 4);
 		// Determine where the free list should start.
 		freeList = SysLib.bytes2int(superBlock, 8);
+		// Determine how block pointers are stored.
+		version = SysLib.bytes2int(superBlock, 12);
+		if (version == 0)
+		{
+			version = Inode.FORMAT_SHORT;
+		}
+		// Determine how free blocks are tracked.
+		allocator = SysLib.bytes2int(superBlock, 16);
+		bitmapStart = SysLib.bytes2int(superBlock, 20);
+		// Determine the cylinder groups.
+		this.groupBlocks = SysLib.bytes2int(superBlock, 24);
+		if (version == Inode.FORMAT_SHORT || version == Inode.FORMAT_INT)
+		{
+			Inode.setFormat(version);
+		}
 
 		// If the disk content is valid...
 		if (totalBlocks == diskSize &&
-			totalInodes > 0 && freeList >= 2)
+			totalInodes > 0 && freeList >= 2 &&
+			(version == Inode.FORMAT_SHORT || version == Inode.FORMAT_INT) &&
+			((allocator == FREE_LIST && this.groupBlocks == 0) ||
+			 (allocator == FREE_BITMAP && this.groupBlocks == 0 &&
+				bitmapStart >= 2 && bitmapStart +
+				FreeMap.blocksFor(totalBlocks) <= totalBlocks) ||
+			 (allocator == FREE_BITMAP && groupsFit())))
 		{
+			setGroups();
+			if (allocator == FREE_BITMAP)
+			{
+				loadMaps();
+			}
+			else if (preferred == FREE_BITMAP)
+			{
+				convertFreeList();
+			}
 			return;
 		}
 		// Else we need to format the disk with the
@@ -54,14 +142,26 @@ public class SuperBlock
 
 	// The following method determines how many blocks should
 	// be allocated for Inodes and where the free list should start.
-	public void format( int files )
+	public synchronized void format( int files )
 	{
-		// Used to determine where the free list should start.
-		int offset;
 		// Used to hold the data that will be written to the disk.
 		byte[] data = null;
 		// Set the total number of Inodes to be allocated.
 		totalInodes = files;
+		// Only disks too large for 16-bit pointers pay for wider inodes.
+		version = (totalBlocks > maxShortBlocks)
+			? Inode.FORMAT_INT : Inode.FORMAT_SHORT;
+		Inode.setFormat(version);
+		// Only the bitmap knows about cylinder groups.
+		groupBlocks = (preferred == FREE_BITMAP) ? preferredGroupBlocks : 0;
+		if (groupBlocks != 0 && !groupsFit())
+		{
+			SysLib.cerr("threadOS: cylinder groups of " + groupBlocks
+					+ " blocks do not fit " + totalInodes + " inodes on "
+					+ totalBlocks + " blocks; formatting without groups\n");
+			groupBlocks = 0;
+		}
+		setGroups();
 
 		// The following for loop allocates every Inode to the disk.
 		for (int i = 0; i < totalInodes; i++)
@@ -69,41 +169,230 @@ public class SuperBlock
 			Inode allocate = new Inode();
 			allocate.toDisk((short) i);
 		}
-		// If there are exactly 16 Inodes in every block (every block
-		// is full), then the free list starts at the very next block
-		// (Offset = 1).However, if there's a remainder, then the next
-		// block must hold that remainder, so the offset = 2.
-		if ( files % 16 == 0 )
+		// Determine the the block number of the free list's head.
+		freeList = (groupBlocks == 0) ? firstDataBlock() : groupData(0);
+
+		allocator = preferred;
+		if (allocator == FREE_BITMAP && groupBlocks != 0)
 		{
-			offset = 1;
+			// Each group's blocks past its inodes and its map are free.
+			maps = new FreeMap[groups()];
+			bitmapStart = groupMap(0);
+			for (int g = 0; g < maps.length; g++)
+			{
+				maps[g] = newGroupMap(g);
+				for (int i = groupData(g); i < maps[g].end(); i++)
+				{
+					maps[g].setFree(i);
+				}
+			}
+			sync();
+			return;
 		}
-		else
+		if (allocator == FREE_BITMAP)
 		{
-			offset  = 2;
+			// The bitmap goes at the end of the disk; every block
+			// between the inodes and the bitmap is free. Nothing needs
+			// clearing, as no free block is ever read.
+			bitmapStart = totalBlocks - FreeMap.blocksFor(totalBlocks);
+			FreeMap freeMap = new FreeMap(totalBlocks, bitmapStart);
+			for (int i = freeList; i < bitmapStart; i++)
+			{
+				freeMap.setFree(i);
+			}
+			maps = new FreeMap[] { freeMap };
+			sync();
+			return;
 		}
-		// Determine the the block number of the free list's head.
-		freeList = ( files / 16 + offset );
+		maps = null;
+		bitmapStart = 0;
 
-		// For loop that iterates through each block in the free list.
-		for (int i = freeList; i < totalBlocks; i++)
+		// Every free block is cleared. A zero next pointer stands for
+		// the block right after it (block 0 is never free), so a
+		// freshly formatted disk holds only zeros past the inodes and
+		// its image file can stay sparse. The blocks are cleared in
+		// runs, one vectored write per run.
+		data = new byte[formatRun * Disk.blockSize];
+		for (int i = freeList; i < totalBlocks; i += formatRun)
 		{
-			// Create a new block that will hold the data.
-			data = new byte[Disk.blockSize];
-			// Initialize the data with zeros.
-			for (int j = 0; j < Disk.blockSize; j++)
+			int count = Math.min(formatRun, totalBlocks - i);
+			if (count == formatRun)
+			{
+				SysLib.cwritev(i, data);
+			}
+			else
 			{
-				data[j] = (byte) 0;
+				SysLib.cwritev(i, new byte[count * Disk.blockSize]);
 			}
-			// Write the block to the disk.
-			SysLib.int2bytes(i + 1, data, 0);
-			SysLib.rawwrite(i, data);
 		}
 
 		sync();
 	}
+
+	// The first block past the inodes. If every inode block is full,
+	// then it is the very next block (Offset = 1). However, if there's
+	// a remainder, then the next block must hold that remainder, so
+	// the offset = 2.
+	private int firstDataBlock()
+	{
+		int offset = (totalInodes % Inode.inodesPerBlock() == 0) ? 1 : 2;
+		return totalInodes / Inode.inodesPerBlock() + offset;
+	}
+
+	// The number of cylinder groups, 1 if the disk has none.
+	private int groups()
+	{
+		return (groupBlocks == 0) ? 1 : totalBlocks / groupBlocks;
+	}
+
+	// The group block lies in.
+	private int groupOf(int block)
+	{
+		return (groupBlocks == 0)
+			? 0 : Math.min(block / groupBlocks, groups() - 1);
+	}
+
+	// The block past the last one of group g.
+	private int groupEnd(int g)
+	{
+		return (g == groups() - 1) ? totalBlocks : (g + 1) * groupBlocks;
+	}
+
+	// Inodes in each group's slice.
+	private int groupInodes()
+	{
+		return (totalInodes + groups() - 1) / groups();
+	}
+
+	// The first block of group g's map, right after its inodes; group 0
+	// starts with the superblock.
+	private int groupMap(int g)
+	{
+		int inodeBlocks = (groupInodes() + Inode.inodesPerBlock() - 1)
+			/ Inode.inodesPerBlock();
+		return g * groupBlocks + (g == 0 ? 1 : 0) + inodeBlocks;
+	}
+
+	// The first data block of group g.
+	private int groupData(int g)
+	{
+		return groupMap(g)
+			+ FreeMap.blocksFor(groupEnd(g) - g * groupBlocks);
+	}
+
+	// Whether groups of groupBlocks blocks leave every group data blocks.
+	// Group 0 has the least room, as it holds the superblock too.
+	private boolean groupsFit()
+	{
+		return groupBlocks > 0 && groupBlocks <= totalBlocks
+			&& groupData(0) < groupEnd(0);
+	}
+
+	// Tells Inode where the inodes are.
+	private void setGroups()
+	{
+		Inode.setGroups(groupBlocks,
+				(groupBlocks == 0) ? 0 : groupInodes());
+	}
+
+	// An empty map of group g's blocks.
+	private FreeMap newGroupMap(int g)
+	{
+		return new FreeMap(g * groupBlocks, groupEnd(g) - g * groupBlocks,
+				groupMap(g));
+	}
+
+	// Reads the bitmap, or each group's.
+	private void loadMaps()
+	{
+		if (groupBlocks == 0)
+		{
+			maps = new FreeMap[] {
+				FreeMap.load(0, totalBlocks, bitmapStart) };
+			return;
+		}
+		maps = new FreeMap[groups()];
+		for (int g = 0; g < maps.length; g++)
+		{
+			maps[g] = FreeMap.load(g * groupBlocks,
+					groupEnd(g) - g * groupBlocks, groupMap(g));
+		}
+	}
+
+	// The block a file with inode iNumber should start at: the first
+	// data block of its inode's group, or -1 if the disk has no groups.
+	public synchronized int groupGoal(int iNumber)
+	{
+		if (maps == null || groupBlocks == 0)
+		{
+			return -1;
+		}
+		return groupData(Math.min(iNumber / groupInodes(), groups() - 1));
+	}
+
+	// Moves a free-list disk to the bitmap. The list is followed once,
+	// its blocks read in runs of up to formatRun, as the zero pointers
+	// of a freshly formatted disk make long runs. The bitmap takes the
+	// last free run long enough for it; a disk without one stays on
+	// the free list.
+	private void convertFreeList()
+	{
+		FreeMap map = new FreeMap(totalBlocks, 0);
+		byte[] run = null;
+		int runStart = 0;
+		int block = freeList;
+		int low = firstDataBlock();
+		// A broken or cyclic list ends at a block already seen.
+		while (block >= low && block < totalBlocks && !map.isFree(block))
+		{
+			if (run == null || block < runStart ||
+				block >= runStart + run.length / Disk.blockSize)
+			{
+				runStart = block;
+				run = new byte[Math.min(formatRun, totalBlocks - block)
+						* Disk.blockSize];
+				SysLib.creadv(runStart, run);
+			}
+			map.setFree(block);
+			int next = SysLib.bytes2int(run,
+					(block - runStart) * Disk.blockSize);
+			block = (next == 0) ? block + 1 : next;
+		}
+
+		int size = FreeMap.blocksFor(totalBlocks);
+		for (int start = totalBlocks - size; start >= low; start--)
+		{
+			int i = 0;
+			while (i < size && map.isFree(start + i))
+			{
+				i++;
+			}
+			if (i == size)
+			{
+				for (i = 0; i < size; i++)
+				{
+					map.setUsed(start + i);
+				}
+				map.start = start;
+				maps = new FreeMap[] { map };
+				allocator = FREE_BITMAP;
+				bitmapStart = start;
+				block = map.findFree(low);
+				freeList = (block == -1) ? totalBlocks : block;
+				sync();
+				SysLib.cerr("threadOS: free list converted to a bitmap at "
+						+ "block " + start + "\n");
+				return;
+			}
+		}
+		SysLib.cerr("threadOS: no room for a free block bitmap; "
+				+ "keeping the free list\n");
+	}
+
 	// The following function writes back totalBlocks,
-	// totalInodes, and freeList to the disk.
-	public void sync()
+	// totalInodes, and freeList to the disk, and the bitmap's
+	// changed blocks.
+	public synchronized void sync()
 	{
 		// Create byte array to hold block data.
 		byte[] data = new byte[Disk.blockSize];
@@ -113,42 +402,163 @@ public class SuperBlock
 		SysLib.int2bytes(totalBlocks, data, 0);
 		SysLib.int2bytes(totalInodes, data, 4);
 		SysLib.int2bytes(freeList, data, 8);
-		SysLib.rawwrite(0, data);
+		SysLib.int2bytes(version, data, 12);
+		SysLib.int2bytes(allocator, data, 16);
+		SysLib.int2bytes(bitmapStart, data, 20);
+		SysLib.int2bytes(groupBlocks, data, 24);
+		SysLib.cwrite(0, data);
+		if (maps != null)
+		{
+			for (int g = 0; g < maps.length; g++)
+			{
+				maps[g].sync();
+			}
+		}
 	}
 	// The following method dequeues the top block from the free list.
-	public short getFreeBlock()
+	public synchronized int getFreeBlock()
 	{
 		// Check if there are no more free blocks
-		if(freeList < 0 || freeList > totalBlocks){
+		if(freeList < 0 || freeList >= totalBlocks){
 			return -1;
 		}
+		if (maps != null)
+		{
+			int[] block = new int[1];
+			return (getFreeBlocks(-1, block, 1) == 1) ? block[0] : -1;
+		}
 		// Create byte array to hold block data.
 		byte[] data = new byte[Disk.blockSize];
 		// Mark the block we are to dequeue.
-		short freeBlock = (short)freeList;
+		int freeBlock = freeList;
 		// Read the block's data from the disk.
-		SysLib.rawread(freeList, data);
-		SysLib.int2bytes(0, data, 0);
-		// Get the next free block.
+		SysLib.cread(freeList, data);
+		// Get the next free block; 0 means the following block.
 		freeList = SysLib.bytes2int(data, 0);
+		if (freeList == 0)
+		{
+			freeList = freeBlock + 1;
+		}
 		// Return the dequeued block.
 		return freeBlock;
 	}
+	// The following method dequeues up to count free blocks at once,
+	// storing them in blocks, and returns how many it got. With the
+	// bitmap they are consecutive: starting at goal if that block is
+	// free, else at the first run of count free blocks, looked for from
+	// goal on and then from the start, else at the first free block;
+	// the run ends at the first block in use. With cylinder groups, the
+	// runs of goal's group are looked at first and then those of the
+	// groups after it, and the run ends at the end of its group. On the
+	// free list, goal is ignored and the blocks come off the list one
+	// by one.
+	public int getFreeBlocks(int goal, int[] blocks, int count)
+	{
+		return getFreeBlocks(goal, blocks, count, count);
+	}
+
+	// As above, but the run looked for is need blocks long, and is
+	// grown up to count blocks if the blocks after it are free. The
+	// free list hands out need blocks, as every block taken from it
+	// and given back costs a disk access.
+	public synchronized int getFreeBlocks(int goal, int[] blocks, int need,
+		int count)
+	{
+		int n = 0;
+		if (maps == null)
+		{
+			while (n < need && (blocks[n] = getFreeBlock()) != -1)
+			{
+				n++;
+			}
+			return n;
+		}
+		if (need <= 0 || freeList < 0 || freeList >= totalBlocks)
+		{
+			return 0;
+		}
+		boolean hasGoal = goal >= 0 && goal < totalBlocks;
+		int group = groupOf(hasGoal ? goal : freeList);
+		FreeMap map = null;
+		int first = -1;
+		for (int g = 0; g < maps.length && first == -1; g++)
+		{
+			map = maps[(group + g) % maps.length];
+			// Every block below freeList is in use.
+			int from = Math.max(map.first, freeList);
+			if (g == 0 && hasGoal && goal >= from)
+			{
+				if (map.isFree(goal))
+				{
+					first = goal;
+				}
+				else if (goal > from)
+				{
+					first = map.findRun(goal, need);
+				}
+			}
+			if (first == -1)
+			{
+				first = map.findRun(from, need);
+			}
+		}
+		for (int g = 0; g < maps.length && first == -1; g++)
+		{
+			map = maps[(group + g) % maps.length];
+			first = map.findFree(Math.max(map.first, freeList));
+		}
+		if (first == -1)
+		{
+			freeList = totalBlocks;
+			return 0;
+		}
+		while (n < count && first + n < map.end() &&
+			map.isFree(first + n))
+		{
+			map.setUsed(first + n);
+			blocks[n] = first + n;
+			n++;
+		}
+		// freeList stays the lowest block that may be free.
+		if (first == freeList)
+		{
+			freeList = first + n;
+		}
+		return n;
+	}
 	// The following method enqueues a given
 	// block to the the free list.
-	public boolean returnBlock(int blockNumber)
+	public synchronized boolean returnBlock(int blockNumber)
 	{
 		// Check parameter first
-		if(blockNumber < 0 || blockNumber > totalBlocks){
+		if(blockNumber < 0 || blockNumber >= totalBlocks){
 			return false;
 		}
+		if (maps != null)
+		{
+			// Neither the inodes, the bitmap nor a free block can be
+			// returned.
+			FreeMap map = maps[groupOf(blockNumber)];
+			if ((groupBlocks == 0 && (blockNumber < firstDataBlock() ||
+				(blockNumber >= bitmapStart &&
+				 blockNumber < bitmapStart + FreeMap.blocksFor(totalBlocks))))
+				|| (groupBlocks != 0 &&
+				 blockNumber < groupData(groupOf(blockNumber)))
+				|| map.isFree(blockNumber))
+			{
+				return false;
+			}
+			map.setFree(blockNumber);
+			freeList = Math.min(freeList, blockNumber);
+			return true;
+		}
 		// Create byte array to hold block data.
 		byte[] data = new byte[Disk.blockSize];
 
 		// Add the block to the end of the free list
 		// and write it to the disk.
 		SysLib.int2bytes(freeList, data, 0);
-		SysLib.rawwrite(blockNumber, data);
+		SysLib.cwrite(blockNumber, data);
 		// Set the free list.
 		freeList = blockNumber;
 		// The block has been enqueued successfully.
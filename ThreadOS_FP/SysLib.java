@@ -12,8 +12,13 @@ public class SysLib {
     }
 
     public static int boot( ) {
+	return boot( null );
+    }
+
+    // boots with "key=value" options, e.g. "disk=mapped"
+    public static int boot( String args[] ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
-				 Kernel.BOOT, 0, null );
+				 Kernel.BOOT, 0, args );
     }
 
     public static int exit( ) {
@@ -56,6 +61,18 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    // b.length must be a multiple of the block size; blocks blkNumber,
+    // blkNumber + 1, ... are transferred in a single disk command
+    public static int rawreadv( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, blkNumber, b );
+    }
+
+    public static int rawwritev( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, blkNumber, b );
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
@@ -66,11 +83,50 @@ public class SysLib {
 				 Kernel.CREAD, blkNumber, b );
     }
 
+    // Reads length bytes of block blkNumber, from byte blkOffset on, into
+    // b at offset, copying only those bytes out of the cache.
+    public static int cread( int blkNumber, int blkOffset, byte[] b,
+			     int offset, int length ) {
+	int[] range = new int[3];
+	range[0] = blkOffset;
+	range[1] = offset;
+	range[2] = length;
+	Object[] args = new Object[2];
+	args[0] = b;
+	args[1] = range;
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADAT, blkNumber, args );
+    }
+
     public static int cwrite( int blkNumber, byte[] b ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CWRITE, blkNumber, b );
     }
 
+    // vectored versions of cread and cwrite, used by the file system
+    public static int creadv( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CREADV, blkNumber, b );
+    }
+
+    public static int cwritev( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CWRITEV, blkNumber, b );
+    }
+
+    // Keeps block blkNumber in the cache until cunpin( blkNumber ). Pins
+    // are counted, and fail past the boot option pinmax's share of the
+    // cache.
+    public static int cpin( int blkNumber ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CPIN, blkNumber, null );
+    }
+
+    public static int cunpin( int blkNumber ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CUNPIN, blkNumber, null );
+    }
+
     public static int flush( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CFLUSH, 0, null );
@@ -153,6 +209,17 @@ public class SysLib {
 				 Kernel.SEEK, fd, args );
     }
 
+    // pins or unpins every block the open file fd has now
+    public static int pin( int fd ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.PIN, fd, null );
+    }
+
+    public static int unpin( int fd ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.UNPIN, fd, null );
+    }
+
     public static int fsize( int fd ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SIZE, fd, null );
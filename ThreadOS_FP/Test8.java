@@ -0,0 +1,34 @@
+// Measures raw disk throughput under concurrent load. Spawns a number of
+// Test8a threads that each read random blocks, and reports the elapsed
+// time; compare boots with sched=fifo, sstf, scan and clook.
+public class Test8 extends Thread {
+  private int threads = 8;
+  private int reads = 25;
+
+  public Test8( String[] args ) {
+    if ( args.length > 0 )
+      threads = Integer.parseInt( args[0] );
+    if ( args.length > 1 )
+      reads = Integer.parseInt( args[1] );
+  }
+
+  public Test8( ) {
+  }
+
+  public void run( ) {
+    long start = System.currentTimeMillis( );
+    String[] cmd = new String[3];
+    cmd[0] = "Test8a";
+    cmd[2] = String.format( "%d", reads );
+    for ( int i = 0; i < threads; i++ ) {
+      cmd[1] = String.format( "%d", i );
+      SysLib.exec( cmd );
+    }
+    for ( int i = 0; i < threads; i++ )
+      SysLib.join( );
+    long elapsed = System.currentTimeMillis( ) - start;
+    SysLib.cout( "Test8: " + threads * reads + " random reads by " + threads
+                 + " threads took " + elapsed + " msec\n" );
+    SysLib.exit( );
+  }
+}
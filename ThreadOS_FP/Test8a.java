@@ -0,0 +1,21 @@
+import java.util.Random;
+
+public class Test8a extends Thread {
+  private Random random;
+  private int reads;
+
+  public Test8a( String[] args ) {
+    random = new Random( Integer.parseInt( args[0] ) );
+    reads = Integer.parseInt( args[1] );
+  }
+
+  public void run( ) {
+    // the disk's size is the first field of the superblock
+    byte[] block = new byte[512];
+    SysLib.rawread( 0, block );
+    int totalBlocks = SysLib.bytes2int( block, 0 );
+    for ( int i = 0; i < reads; i++ )
+      SysLib.rawread( random.nextInt( totalBlocks ), block );
+    SysLib.exit( );
+  }
+}
@@ -0,0 +1,110 @@
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Drives CacheShard into corner cases under every replacement policy.
+// The shards are private to the test and cache disk blocks base ..
+// base + 7, which are only ever written back with their own contents.
+public class Test9 extends Thread {
+  private static final String[] policies
+    = { "second-chance", "lru", "2q", "arc", "clock-pro" };
+  private int base = 100;
+  private byte[][] original = new byte[8][512];
+
+  public Test9( String[] args ) {
+    if ( args.length > 0 )
+      base = Integer.parseInt( args[0] );
+  }
+
+  public Test9( ) {
+  }
+
+  public void run( ) {
+    for ( int k = 0; k < original.length; k++ )
+      SysLib.rawread( base + k, original[k] );
+    for ( int p = 0; p < policies.length; p++ ) {
+      SysLib.cout( "1: scan write, oldest page cleaning (" + policies[p]
+                   + ")..." );
+      report( scanWhileCleaning( policies[p] ) );
+    }
+    for ( int p = 0; p < policies.length; p++ ) {
+      SysLib.cout( "2: resize with a pinned page (" + policies[p]
+                   + ")..." );
+      report( resizePinned( policies[p] ) );
+    }
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private void report( String error ) {
+    if ( error == null )
+      SysLib.cout( "correct\n" );
+    else
+      SysLib.cout( error + " (wrong)\n" );
+  }
+
+  private CacheShard newShard( int pages, String policy ) {
+    return new CacheShard( 512, pages, "heap", policy, new AtomicLong( ) );
+  }
+
+  // A sequential write fills a 4-page shard with scan pages, so the
+  // policy holds none. While the flusher cleans the oldest one, more
+  // scan writes must take the other scan pages.
+  private String scanWhileCleaning( String policy ) {
+    try {
+      CacheShard shard = newShard( 4, policy );
+      for ( int k = 0; k < 4; k++ )
+        shard.write( base + k, original[k], StreamDetector.SCAN );
+      Vector<CacheShard.DirtyPage> dirty = new Vector<CacheShard.DirtyPage>( );
+      shard.dirtyPages( dirty );
+      CacheShard.DirtyPage oldest = null;
+      for ( int k = 0; k < dirty.size( ); k++ )
+        if ( dirty.elementAt( k ).blockId == base )
+          oldest = dirty.elementAt( k );
+      if ( oldest == null || shard.clean( oldest ) == false )
+        return "could not clean block " + base;
+      shard.write( base + 4, original[4], StreamDetector.SCAN );
+      shard.write( base + 5, original[5], StreamDetector.SCAN );
+      shard.cleaned( oldest, false );
+      shard.write( base + 6, original[6], StreamDetector.SCAN );
+      byte[] data = new byte[512];
+      for ( int k = 4; k < 7; k++ ) {
+        shard.read( base + k, 0, data, 0, 512, StreamDetector.RANDOM );
+        if ( java.util.Arrays.equals( data, original[k] ) == false )
+          return "block " + ( base + k ) + " lost";
+      }
+      shard.writeBack( );
+      return null;
+    } catch ( RuntimeException e ) {
+      return e.toString( );
+    }
+  }
+
+  // A pinned page is counted among the resident pages but is never given
+  // to the policy, so ranking the pages for a resize must not wait for
+  // the policy to give it up.
+  private String resizePinned( String policy ) {
+    try {
+      CacheShard shard = newShard( 8, policy );
+      shard.setPinPercent( 25 );
+      if ( shard.pin( base ) == false )
+        return "could not pin block " + base;
+      byte[] data = new byte[512];
+      for ( int k = 1; k < 8; k++ )
+        shard.read( base + k, 0, data, 0, 512, StreamDetector.RANDOM );
+      shard.resize( 16 );
+      if ( shard.size( ) != 16 )
+        return "size " + shard.size( );
+      shard.resize( 4 );
+      if ( shard.unpin( base ) == false )
+        return "block " + base + " no longer pinned";
+      for ( int k = 0; k < 8; k++ ) {
+        shard.read( base + k, 0, data, 0, 512, StreamDetector.RANDOM );
+        if ( java.util.Arrays.equals( data, original[k] ) == false )
+          return "block " + ( base + k ) + " lost";
+      }
+      return null;
+    } catch ( RuntimeException e ) {
+      return e.toString( );
+    }
+  }
+}